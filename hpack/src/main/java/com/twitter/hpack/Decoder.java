@@ -17,10 +17,13 @@ package com.twitter.hpack;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.twitter.hpack.HpackUtil.IndexType;
 
 import static com.twitter.hpack.HeaderField.HEADER_ENTRY_OVERHEAD;
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
 
 public final class Decoder {
 
@@ -35,7 +38,9 @@ public final class Decoder {
 
   private static final byte[] EMPTY = {};
 
-  private final DynamicTable dynamicTable;
+  private final HeaderTable dynamicTable;
+  private final SlabDynamicTable slabTable;
+  private final HeaderInternCache internCache;
 
   private int maxHeaderSize;
   private int maxDynamicTableSize;
@@ -51,6 +56,31 @@ public final class Decoder {
   private int nameLength;
   private int valueLength;
   private byte[] name;
+  private int nameOffset;
+  private int nameEnd;
+  private boolean nameBorrowed;
+  private HeaderField nameField;
+  private int nameSlot = -1;
+  private boolean borrowLiterals;
+  private boolean lazyValues;
+  private boolean encodedValue;
+
+  // output buffer for Huffman decoded and partially read literals, reused across literals
+  private byte[] literalBuffer = EMPTY;
+
+  // input buffer for the InputStream method, starting with the bytes retained
+  // from the previous call for streams that do not support mark and reset
+  private byte[] streamBuffer = EMPTY;
+  private int streamBuffered;
+
+  // progress of a literal header value that spans input buffers
+  private int valueRead;
+  private int huffmanState;
+  private ByteBuffer partialValue;
+
+  private final HeaderListenerAdapter listenerAdapter = new HeaderListenerAdapter();
+  private final LazyHeaderListenerAdapter lazyListenerAdapter = new LazyHeaderListenerAdapter();
+  private HeaderStringListener stringListener;
 
   private enum State {
     READ_HEADER_REPRESENTATION,
@@ -71,7 +101,34 @@ public final class Decoder {
    * Creates a new decoder.
    */
   public Decoder(int maxHeaderSize, int maxHeaderTableSize) {
-    dynamicTable = new DynamicTable(maxHeaderTableSize);
+    this(maxHeaderSize, maxHeaderTableSize, null);
+  }
+
+  /**
+   * Creates a new decoder that takes header field names and values from the
+   * given cache, which may be shared with other decoders.
+   * Sensitive values are never cached.
+   */
+  public Decoder(int maxHeaderSize, int maxHeaderTableSize, HeaderInternCache internCache) {
+    this(maxHeaderSize, maxHeaderTableSize, internCache, false);
+  }
+
+  /**
+   * Creates a new decoder.
+   * If slabTable is true, the dynamic table stores the names and values of
+   * its header fields in a single byte array sized to the table's capacity.
+   * Indexed header fields are then emitted as slices of that array,
+   * and are copied for listeners that do not accept slices.
+   */
+  public Decoder(int maxHeaderSize, int maxHeaderTableSize, HeaderInternCache internCache, boolean slabTable) {
+    this.internCache = internCache;
+    if (slabTable) {
+      this.slabTable = new SlabDynamicTable(maxHeaderTableSize);
+      dynamicTable = this.slabTable;
+    } else {
+      this.slabTable = null;
+      dynamicTable = new DynamicTable(maxHeaderTableSize);
+    }
     this.maxHeaderSize = maxHeaderSize;
     maxDynamicTableSize = maxHeaderTableSize;
     encoderMaxDynamicTableSize = maxHeaderTableSize;
@@ -83,16 +140,144 @@ public final class Decoder {
     headerSize = 0;
     state = State.READ_HEADER_REPRESENTATION;
     indexType = IndexType.NONE;
+    valueRead = 0;
+    streamBuffered = 0;
   }
 
   /**
    * Decode the header block into header fields.
+   * If the available bytes do not end on a header field boundary, the bytes
+   * of the incomplete header field representation are left in the stream if
+   * it supports mark and reset. Otherwise they are consumed and retained by
+   * the decoder until the next call.
    */
   public void decode(InputStream in, HeaderListener headerListener) throws IOException {
-    while (in.available() > 0) {
+    int available = in.available();
+    if (available <= 0) {
+      return;
+    }
+    boolean unread = in.markSupported() && streamBuffered == 0;
+    if (unread) {
+      in.mark(available);
+    }
+    int length = streamBuffered;
+    if (streamBuffer.length < length + available) {
+      streamBuffer = Arrays.copyOf(streamBuffer, Math.max(length + available, streamBuffer.length << 1));
+    }
+    int end = length + available;
+    while (length < end) {
+      int n = in.read(streamBuffer, length, end - length);
+      if (n == -1) {
+        break;
+      }
+      length += n;
+    }
+    ByteBuffer bb = ByteBuffer.wrap(streamBuffer, 0, length);
+    streamBuffered = 0;
+    decode(bb, headerListener);
+    if (!bb.hasRemaining()) {
+      return;
+    }
+    if (unread) {
+      // Unread the bytes that were not consumed by the decoder
+      in.reset();
+      long skip = bb.position();
+      while (skip > 0) {
+        skip -= in.skip(skip);
+      }
+    } else {
+      // Retain the bytes that were not consumed by the decoder
+      streamBuffered = bb.remaining();
+      System.arraycopy(streamBuffer, bb.position(), streamBuffer, 0, streamBuffered);
+    }
+  }
+
+  /**
+   * Decode the header block into header fields.
+   * The buffer's position is advanced past every byte consumed by the decoder.
+   * Any remaining bytes belong to an incomplete header field representation
+   * and must be presented again, followed by the rest of the header block,
+   * on the next call.
+   */
+  public void decode(ByteBuffer in, HeaderListener headerListener) throws IOException {
+    listenerAdapter.headerListener = headerListener;
+    try {
+      decodeHeaders(in, listenerAdapter);
+    } finally {
+      listenerAdapter.headerListener = null;
+      releaseName();
+    }
+  }
+
+  /**
+   * Decode the header block into header fields.
+   * Header field names and values that are not Huffman encoded are passed to
+   * the listener as slices of the input buffer's backing array, if it has one.
+   * The buffer's position is advanced past every byte consumed by the decoder.
+   * Any remaining bytes belong to an incomplete header field representation
+   * and must be presented again, followed by the rest of the header block,
+   * on the next call.
+   */
+  public void decode(ByteBuffer in, HeaderSliceListener headerListener) throws IOException {
+    borrowLiterals = true;
+    try {
+      decodeHeaders(in, headerListener);
+    } finally {
+      borrowLiterals = false;
+      releaseName();
+    }
+  }
+
+  /**
+   * Decode the header block into header fields.
+   * Huffman encoded values that are not added to the dynamic table are
+   * passed to the listener undecoded, and count towards the maximum header
+   * size with their encoded length.
+   * The buffer's position is advanced past every byte consumed by the decoder.
+   * Any remaining bytes belong to an incomplete header field representation
+   * and must be presented again, followed by the rest of the header block,
+   * on the next call.
+   */
+  public void decodeLazy(ByteBuffer in, LazyHeaderListener headerListener) throws IOException {
+    lazyValues = true;
+    lazyListenerAdapter.headerListener = headerListener;
+    try {
+      decodeHeaders(in, lazyListenerAdapter);
+    } finally {
+      lazyValues = false;
+      lazyListenerAdapter.headerListener = null;
+      releaseName();
+    }
+  }
+
+  /**
+   * Decode the header block into header fields.
+   * Header fields in the dynamic table are emitted with cached String
+   * instances, in both the default and the slab table modes.
+   * The buffer's position is advanced past every byte consumed by the decoder.
+   * Any remaining bytes belong to an incomplete header field representation
+   * and must be presented again, followed by the rest of the header block,
+   * on the next call.
+   */
+  public void decodeStrings(ByteBuffer in, HeaderStringListener headerListener) throws IOException {
+    // Strings are created from the slices, so literals need not be copied
+    borrowLiterals = true;
+    stringListener = headerListener;
+    try {
+      // Every header field is emitted to the string listener, never as slices
+      decodeHeaders(in, null);
+    } finally {
+      borrowLiterals = false;
+      stringListener = null;
+      releaseName();
+    }
+  }
+
+  private void decodeHeaders(ByteBuffer in, HeaderSliceListener headerListener) throws IOException {
+    while (in.hasRemaining()) {
       switch(state) {
       case READ_HEADER_REPRESENTATION:
-        byte b = (byte) in.read();
+        byte b = in.get();
         if (maxDynamicTableSizeChangeRequired && (b & 0xE0) != 0x20) {
           // Encoder MUST signal maximum dynamic table size change
           throw MAX_DYNAMIC_TABLE_SIZE_CHANGE_REQUIRED;
@@ -192,7 +377,7 @@ public final class Decoder {
         break;
 
       case READ_LITERAL_HEADER_NAME_LENGTH_PREFIX:
-        b = (byte) in.read();
+        b = in.get();
         huffmanEncoded = (b & 0x80) == 0x80;
         index = b & 0x7F;
         if (index == 0x7f) {
@@ -210,7 +395,7 @@ public final class Decoder {
 
             if (indexType == IndexType.NONE) {
               // Name is unused so skip bytes
-              name = EMPTY;
+              setName(EMPTY);
               skipLength = nameLength;
               state = State.SKIP_LITERAL_HEADER_NAME;
               break;
@@ -219,7 +404,7 @@ public final class Decoder {
             // Check name length against max dynamic table size
             if (nameLength + HEADER_ENTRY_OVERHEAD > dynamicTable.capacity()) {
               dynamicTable.clear();
-              name = EMPTY;
+              setName(EMPTY);
               skipLength = nameLength;
               state = State.SKIP_LITERAL_HEADER_NAME;
               break;
@@ -246,7 +431,7 @@ public final class Decoder {
         if (exceedsMaxHeaderSize(nameLength)) {
           if (indexType == IndexType.NONE) {
             // Name is unused so skip bytes
-            name = EMPTY;
+            setName(EMPTY);
             skipLength = nameLength;
             state = State.SKIP_LITERAL_HEADER_NAME;
             break;
@@ -255,7 +440,7 @@ public final class Decoder {
           // Check name length against max dynamic table size
           if (nameLength + HEADER_ENTRY_OVERHEAD > dynamicTable.capacity()) {
             dynamicTable.clear();
-            name = EMPTY;
+            setName(EMPTY);
             skipLength = nameLength;
             state = State.SKIP_LITERAL_HEADER_NAME;
             break;
@@ -266,17 +451,27 @@ public final class Decoder {
 
       case READ_LITERAL_HEADER_NAME:
         // Wait until entire name is readable
-        if (in.available() < nameLength) {
+        if (in.remaining() < nameLength) {
           return;
         }
 
-        name = readStringLiteral(in, nameLength);
+        if (internCache == null && canBorrow(in)) {
+          name = in.array();
+          nameOffset = in.arrayOffset() + in.position();
+          nameEnd = nameOffset + nameLength;
+          nameBorrowed = true;
+          nameField = null;
+          nameSlot = -1;
+          skip(in, nameLength);
+        } else {
+          setName(readStringLiteral(in, nameLength, internCache != null));
+        }
 
         state = State.READ_LITERAL_HEADER_VALUE_LENGTH_PREFIX;
         break;
 
       case SKIP_LITERAL_HEADER_NAME:
-        skipLength -= in.skip(skipLength);
+        skipLength -= skip(in, skipLength);
 
         if (skipLength == 0) {
           state = State.READ_LITERAL_HEADER_VALUE_LENGTH_PREFIX;
@@ -284,8 +479,15 @@ public final class Decoder {
         break;
 
       case READ_LITERAL_HEADER_VALUE_LENGTH_PREFIX:
-        b = (byte) in.read();
+        b = in.get();
         huffmanEncoded = (b & 0x80) == 0x80;
+
+        // Values that are not added to the dynamic table may be left encoded
+        encodedValue = huffmanEncoded && lazyValues && indexType != IndexType.INCREMENTAL;
+        if (encodedValue) {
+          huffmanEncoded = false;
+        }
+
         index = b & 0x7F;
         if (index == 0x7f) {
           state = State.READ_LITERAL_HEADER_VALUE_LENGTH;
@@ -313,7 +515,7 @@ public final class Decoder {
           }
 
           if (valueLength == 0) {
-            insertHeader(headerListener, name, EMPTY, indexType);
+            insertHeader(headerListener, EMPTY, 0, 0, false, indexType);
             state = State.READ_HEADER_REPRESENTATION;
           } else {
             state = State.READ_LITERAL_HEADER_VALUE;
@@ -358,18 +560,38 @@ public final class Decoder {
         break;
 
       case READ_LITERAL_HEADER_VALUE:
-        // Wait until entire value is readable
-        if (in.available() < valueLength) {
-          return;
+        if (valueRead == 0 && in.remaining() >= valueLength) {
+          // Entire value is readable
+          if (borrowLiterals && huffmanEncoded) {
+            int length = decodeHuffman(in, valueLength);
+            insertHeader(headerListener, literalBuffer, 0, length, true, indexType);
+          } else if (canBorrow(in)) {
+            int valueOffset = in.arrayOffset() + in.position();
+            skip(in, valueLength);
+            insertHeader(headerListener, in.array(), valueOffset, valueLength, true, indexType);
+          } else {
+            byte[] value = readStringLiteral(in, valueLength, internValue(indexType));
+            insertHeader(headerListener, value, 0, value.length, false, indexType);
+          }
+        } else {
+          // Consume the value as it arrives
+          if (!readPartialValue(in)) {
+            return;
+          }
+          int length = partialValue.position();
+          if (borrowLiterals) {
+            insertHeader(headerListener, literalBuffer, 0, length, true, indexType);
+          } else {
+            byte[] value = copyLiteral(literalBuffer, 0, length, internValue(indexType));
+            insertHeader(headerListener, value, 0, length, false, indexType);
+          }
+          partialValue = null;
         }
-
-        byte[] value = readStringLiteral(in, valueLength);
-        insertHeader(headerListener, name, value, indexType);
         state = State.READ_HEADER_REPRESENTATION;
         break;
 
       case SKIP_LITERAL_HEADER_VALUE:
-        valueLength -= in.skip(valueLength);
+        valueLength -= skip(in, valueLength);
 
         if (valueLength == 0) {
           state = State.READ_HEADER_REPRESENTATION;
@@ -392,6 +614,25 @@ public final class Decoder {
     return truncated;
   }
 
+  /**
+   * Reset the decoder to the state of a newly created decoder with the given
+   * maximum table size, so that it can be reused for another connection.
+   * The dynamic table is emptied but its storage is retained.
+   */
+  public void reset(int maxHeaderTableSize) {
+    if (maxHeaderTableSize < 0) {
+      throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
+    }
+    dynamicTable.clear();
+    dynamicTable.setCapacity(maxHeaderTableSize);
+    maxDynamicTableSize = maxHeaderTableSize;
+    encoderMaxDynamicTableSize = maxHeaderTableSize;
+    maxDynamicTableSizeChangeRequired = false;
+    setName(EMPTY);
+    partialValue = null;
+    reset();
+  }
+
   /**
    * Set the maximum table size.
    * If this is below the maximum size of the dynamic table used by the encoder,
@@ -451,29 +692,96 @@ public final class Decoder {
   private void readName(int index) throws IOException {
     if (index <= StaticTable.length) {
       HeaderField headerField = StaticTable.getEntry(index);
-      name = headerField.name;
+      setName(headerField.name);
+      nameField = headerField;
     } else if (index - StaticTable.length <= dynamicTable.length()) {
+      if (slabTable != null) {
+        int i = slabTable.slot(index - StaticTable.length);
+        name = slabTable.slab;
+        nameOffset = slabTable.offsets[i];
+        nameEnd = nameOffset + slabTable.nameLengths[i];
+        nameBorrowed = true;
+        nameField = null;
+        nameSlot = i;
+        return;
+      }
       HeaderField headerField = dynamicTable.getEntry(index - StaticTable.length);
-      name = headerField.name;
+      setName(headerField.name);
+      nameField = headerField;
     } else {
       throw ILLEGAL_INDEX_VALUE;
     }
   }
 
-  private void indexHeader(int index, HeaderListener headerListener) throws IOException {
+  private void indexHeader(int index, HeaderSliceListener headerListener) throws IOException {
+    HeaderField headerField;
     if (index <= StaticTable.length) {
-      HeaderField headerField = StaticTable.getEntry(index);
-      addHeader(headerListener, headerField.name, headerField.value, false);
+      headerField = StaticTable.getEntry(index);
     } else if (index - StaticTable.length <= dynamicTable.length()) {
-      HeaderField headerField = dynamicTable.getEntry(index - StaticTable.length);
-      addHeader(headerListener, headerField.name, headerField.value, false);
+      if (slabTable != null) {
+        indexSlabHeader(index - StaticTable.length, headerListener);
+        return;
+      }
+      headerField = dynamicTable.getEntry(index - StaticTable.length);
     } else {
       throw ILLEGAL_INDEX_VALUE;
     }
+    if (stringListener != null) {
+      addHeader(headerField.nameString(), headerField.valueString(),
+          headerField.name.length + headerField.value.length, false);
+    } else {
+      addHeader(headerListener, headerField.name, 0, headerField.name.length,
+          headerField.value, 0, headerField.value.length, false);
+    }
   }
 
-  private void insertHeader(HeaderListener headerListener, byte[] name, byte[] value, IndexType indexType) {
-    addHeader(headerListener, name, value, indexType == IndexType.NEVER);
+  private void indexSlabHeader(int index, HeaderSliceListener headerListener) {
+    int i = slabTable.slot(index);
+    byte[] slab = slabTable.slab;
+    int nameOffset = slabTable.offsets[i];
+    int nameLength = slabTable.nameLengths[i];
+    int valueLength = slabTable.valueLengths[i];
+    if (stringListener != null) {
+      addHeader(slabTable.nameString(i), slabTable.valueString(i), nameLength + valueLength, false);
+    } else {
+      addHeader(headerListener, slab, nameOffset, nameLength,
+          slab, nameOffset + nameLength, valueLength, false);
+    }
+  }
+
+  private void insertHeader(HeaderSliceListener headerListener, byte[] value, int valueOffset, int valueLength,
+      boolean valueBorrowed, IndexType indexType) throws IOException {
+    if (encodedValue) {
+      encodedValue = false;
+      if (lazyValues) {
+        addEncodedHeader(value, indexType == IndexType.NEVER);
+        return;
+      }
+      // The value was read by a lazy decode, decode it now
+      int length = Huffman.DECODER.decode(
+          value, valueOffset, valueLength, ensureLiteralBuffer(valueLength), 0);
+      value = copyLiteral(literalBuffer, 0, length, internValue(indexType));
+      valueOffset = 0;
+      valueLength = length;
+      valueBorrowed = false;
+    }
+
+    String nameString = null;
+    String valueString = null;
+    if (stringListener != null) {
+      if (nameField != null) {
+        nameString = nameField.nameString();
+      } else if (nameSlot >= 0) {
+        nameString = slabTable.nameString(nameSlot);
+      } else {
+        nameString = new String(name, nameOffset, nameEnd - nameOffset, ISO_8859_1);
+      }
+      valueString = new String(value, valueOffset, valueLength, ISO_8859_1);
+      addHeader(nameString, valueString, nameEnd - nameOffset + valueLength, indexType == IndexType.NEVER);
+    } else {
+      addHeader(headerListener, name, nameOffset, nameEnd - nameOffset,
+          value, valueOffset, valueLength, indexType == IndexType.NEVER);
+    }
 
     switch (indexType) {
       case NONE:
@@ -481,7 +789,21 @@ public final class Decoder {
         break;
 
       case INCREMENTAL:
-        dynamicTable.add(new HeaderField(name, value));
+        if (slabTable != null) {
+          int slot = slabTable.add(name, nameOffset, nameEnd - nameOffset, value, valueOffset, valueLength);
+          if (slot >= 0 && stringListener != null) {
+            slabTable.setStrings(slot, nameString, valueString);
+          }
+          break;
+        }
+        // Only copy borrowed slices when they must be retained in the dynamic table
+        if (nameBorrowed) {
+          setName(copyLiteral(name, nameOffset, nameEnd - nameOffset, internCache != null));
+        }
+        if (valueBorrowed) {
+          value = copyLiteral(value, valueOffset, valueLength, internCache != null);
+        }
+        dynamicTable.add(new HeaderField(name, value, nameString, valueString));
         break;
 
       default:
@@ -489,13 +811,37 @@ public final class Decoder {
     }
   }
 
-  private void addHeader(HeaderListener headerListener, byte[] name, byte[] value, boolean sensitive) {
-    if (name.length == 0) {
+  private void addHeader(HeaderSliceListener headerListener, byte[] name, int nameOffset, int nameLength,
+      byte[] value, int valueOffset, int valueLength, boolean sensitive) {
+    if (nameLength == 0) {
       throw new AssertionError("name is empty");
     }
-    long newSize = headerSize + name.length + value.length;
+    long newSize = headerSize + nameLength + valueLength;
+    if (newSize <= maxHeaderSize) {
+      headerListener.addHeader(name, nameOffset, nameLength, value, valueOffset, valueLength, sensitive);
+      headerSize = (int) newSize;
+    } else {
+      // truncation will be reported during endHeaderBlock
+      headerSize = maxHeaderSize + 1;
+    }
+  }
+
+  private void addHeader(String name, String value, int length, boolean sensitive) {
+    long newSize = headerSize + length;
+    if (newSize <= maxHeaderSize) {
+      stringListener.addHeader(name, value, sensitive);
+      headerSize = (int) newSize;
+    } else {
+      // truncation will be reported during endHeaderBlock
+      headerSize = maxHeaderSize + 1;
+    }
+  }
+
+  private void addEncodedHeader(byte[] value, boolean sensitive) {
+    long newSize = headerSize + (nameEnd - nameOffset) + value.length;
     if (newSize <= maxHeaderSize) {
-      headerListener.addHeader(name, value, sensitive);
+      lazyListenerAdapter.headerListener.addHeader(
+          toArray(name, nameOffset, nameEnd - nameOffset), new LazyHeaderValue(value, true), sensitive);
       headerSize = (int) newSize;
     } else {
       // truncation will be reported during endHeaderBlock
@@ -503,6 +849,29 @@ public final class Decoder {
     }
   }
 
+  /**
+   * Copies a borrowed name, as the input buffer may be reused
+   * and the dynamic table modified once decode returns.
+   */
+  private void releaseName() {
+    if (nameBorrowed) {
+      setName(copyLiteral(name, nameOffset, nameEnd - nameOffset, internCache != null));
+    }
+  }
+
+  private void setName(byte[] name) {
+    this.name = name;
+    nameOffset = 0;
+    nameEnd = name.length;
+    nameBorrowed = false;
+    nameField = null;
+    nameSlot = -1;
+  }
+
+  private boolean canBorrow(ByteBuffer in) {
+    return borrowLiterals && !huffmanEncoded && in.hasArray();
+  }
+
   private boolean exceedsMaxHeaderSize(long size) {
     // Check new header size against max header size
     if (size + headerSize <= maxHeaderSize) {
@@ -514,43 +883,179 @@ public final class Decoder {
     return true;
   }
 
-  private byte[] readStringLiteral(InputStream in, int length) throws IOException {
+  private byte[] readStringLiteral(ByteBuffer in, int length, boolean intern) throws IOException {
+    if (huffmanEncoded) {
+      int n = decodeHuffman(in, length);
+      return copyLiteral(literalBuffer, 0, n, intern);
+    }
+
+    if (intern) {
+      if (in.hasArray()) {
+        int offset = in.arrayOffset() + in.position();
+        skip(in, length);
+        return internCache.intern(in.array(), offset, length);
+      }
+      in.get(ensureLiteralBuffer(length), 0, length);
+      return internCache.intern(literalBuffer, 0, length);
+    }
+
     byte[] buf = new byte[length];
-    if (in.read(buf) != length) {
-      throw DECOMPRESSION_EXCEPTION;
+    in.get(buf);
+    return buf;
+  }
+
+  private byte[] copyLiteral(byte[] buf, int offset, int length, boolean intern) {
+    if (intern) {
+      return internCache.intern(buf, offset, length);
     }
+    return Arrays.copyOfRange(buf, offset, offset + length);
+  }
 
+  private boolean internValue(IndexType indexType) {
+    // Sensitive values must not be retained beyond the header block
+    return internCache != null && indexType != IndexType.NEVER;
+  }
+
+  /**
+   * Reads the available bytes of the literal header value into the literal buffer,
+   * decoding them as they arrive if the value is Huffman encoded.
+   * Returns true once the entire value has been read.
+   */
+  private boolean readPartialValue(ByteBuffer in) throws IOException {
+    if (valueRead == 0) {
+      partialValue = ByteBuffer.wrap(ensureLiteralBuffer(valueLength));
+      huffmanState = HuffmanDecoder.INITIAL_STATE;
+    }
+
+    int length = Math.min(in.remaining(), valueLength - valueRead);
     if (huffmanEncoded) {
-      return Huffman.DECODER.decode(buf);
+      huffmanState = Huffman.DECODER.decode(huffmanState, in, length, partialValue);
     } else {
-      return buf;
+      int limit = in.limit();
+      in.limit(in.position() + length);
+      partialValue.put(in);
+      in.limit(limit);
+    }
+    valueRead += length;
+
+    if (valueRead < valueLength) {
+      return false;
     }
+    if (huffmanEncoded) {
+      HuffmanDecoder.checkEnd(huffmanState);
+    }
+    valueRead = 0;
+    return true;
+  }
+
+  /**
+   * Decodes the Huffman encoded string literal into the literal buffer.
+   * Returns the length of the decoded string literal.
+   */
+  private int decodeHuffman(ByteBuffer in, int length) throws IOException {
+    ensureLiteralBuffer(length);
+
+    if (in.hasArray()) {
+      int position = in.position();
+      int n = Huffman.DECODER.decode(in.array(), in.arrayOffset() + position, length, literalBuffer, 0);
+      in.position(position + length);
+      return n;
+    }
+
+    int limit = in.limit();
+    in.limit(in.position() + length);
+    try {
+      return Huffman.DECODER.decode(in, ByteBuffer.wrap(literalBuffer));
+    } finally {
+      in.limit(limit);
+    }
+  }
+
+  /**
+   * Ensures the literal buffer can hold a string literal of the given encoded length.
+   */
+  private byte[] ensureLiteralBuffer(int length) {
+    int maxLength = HuffmanDecoder.getMaxDecodedLength(length);
+    if (literalBuffer.length < maxLength) {
+      literalBuffer = new byte[Math.max(maxLength, literalBuffer.length << 1)];
+    }
+    return literalBuffer;
+  }
+
+  private static int skip(ByteBuffer in, int length) {
+    int n = Math.min(in.remaining(), length);
+    in.position(in.position() + n);
+    return n;
   }
 
   // Unsigned Little Endian Base 128 Variable-Length Integer Encoding
-  private static int decodeULE128(InputStream in) throws IOException {
-    in.mark(5);
+  private static int decodeULE128(ByteBuffer in) throws IOException {
+    int position = in.position();
+    int limit = in.limit();
     int result = 0;
     int shift = 0;
     while (shift < 32) {
-      if (in.available() == 0) {
+      if (position == limit) {
         // Buffer does not contain entire integer,
-        // reset reader index and return -1.
-        in.reset();
+        // leave the position unchanged and return -1.
         return -1;
       }
-      byte b = (byte) in.read();
+      byte b = in.get(position++);
       if (shift == 28 && (b & 0xF8) != 0) {
         break;
       }
       result |= (b & 0x7F) << shift;
       if ((b & 0x80) == 0) {
+        in.position(position);
         return result;
       }
       shift += 7;
     }
     // Value exceeds Integer.MAX_VALUE
-    in.reset();
     throw DECOMPRESSION_EXCEPTION;
   }
+
+  /**
+   * Returns the slice as an array, copying it if it does not span the entire array.
+   */
+  private static byte[] toArray(byte[] buf, int offset, int length) {
+    if (offset == 0 && length == buf.length) {
+      return buf;
+    }
+    return Arrays.copyOfRange(buf, offset, offset + length);
+  }
+
+  /**
+   * Adapts a HeaderListener to the slices produced by the decoder.
+   * Literals are never borrowed from the input in this case, so slices
+   * only need to be copied when they come from a slab dynamic table.
+   */
+  private static final class HeaderListenerAdapter implements HeaderSliceListener {
+
+    private HeaderListener headerListener;
+
+    @Override
+    public void addHeader(byte[] name, int nameOffset, int nameLength,
+        byte[] value, int valueOffset, int valueLength, boolean sensitive) {
+      headerListener.addHeader(toArray(name, nameOffset, nameLength),
+          toArray(value, valueOffset, valueLength), sensitive);
+    }
+  }
+
+  /**
+   * Adapts a LazyHeaderListener to the slices produced by the decoder.
+   * Literals are never borrowed from the input in this case, so slices
+   * only need to be copied when they come from a slab dynamic table.
+   */
+  private static final class LazyHeaderListenerAdapter implements HeaderSliceListener {
+
+    private LazyHeaderListener headerListener;
+
+    @Override
+    public void addHeader(byte[] name, int nameOffset, int nameLength,
+        byte[] value, int valueOffset, int valueLength, boolean sensitive) {
+      headerListener.addHeader(toArray(name, nameOffset, nameLength),
+          new LazyHeaderValue(toArray(value, valueOffset, valueLength), false), sensitive);
+    }
+  }
 }
@@ -17,7 +17,7 @@ package com.twitter.hpack;
 
 import static com.twitter.hpack.HeaderField.HEADER_ENTRY_OVERHEAD;
 
-final class DynamicTable {
+final class DynamicTable implements HeaderTable {
 
   // a circular queue of header fields
   HeaderField[] headerFields;
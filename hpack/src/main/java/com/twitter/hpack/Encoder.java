@@ -17,31 +17,62 @@ package com.twitter.hpack;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import com.twitter.hpack.HpackUtil.IndexType;
 
 public final class Encoder {
 
-  private static final int BUCKET_SIZE = 17;
-  private static final byte[] EMPTY = {};
+  // an integer of up to 31 bits needs at most one prefix byte and five continuation bytes
+  static final int MAX_INTEGER_LENGTH = 6;
+
+  // the number of header field names tracked by adaptive Huffman encoding
+  private static final int HUFFMAN_NAMES = 64;
+
+  // the number of consecutive values that must not compress before the Huffman code
+  // is skipped, and the number of values encoded before it is tried again
+  private static final int HUFFMAN_MISSES = 4;
+  private static final int HUFFMAN_RESAMPLE = 64;
 
   // for testing
   private final boolean useIndexing;
   private final boolean forceHuffmanOn;
   private final boolean forceHuffmanOff;
 
-  // a linked hash map of header fields
-  private final HeaderEntry[] headerFields = new HeaderEntry[BUCKET_SIZE];
-  private final HeaderEntry head = new HeaderEntry(-1, EMPTY, EMPTY, Integer.MAX_VALUE, null);
-  private int size;
-  private int capacity;
+  // the dynamic table, indexed by header field name
+  private final EncoderDynamicTable dynamicTable;
+
+  // decides which header fields are added to the dynamic table, or null to add all
+  private final IndexingPolicy indexingPolicy;
+
+  // The adaptive Huffman state of the values of recent header field names, indexed by the
+  // hash code of the name. A state of n >= 0 counts consecutive values that did not
+  // compress, while n < 0 counts down the values to encode without trying the Huffman code.
+  private int[] huffmanNames;
+  private int[] huffmanStates;
+
+  // the encoding of recent header blocks, indexed by the identity of the header list
+  private CachedBlock[] blockCache;
+
+  // output buffer for the OutputStream methods
+  private ByteBuffer buffer = ByteBuffer.allocate(256);
 
   /**
    * Creates a new encoder.
    */
   public Encoder(int maxHeaderTableSize) {
-    this(maxHeaderTableSize, true, false, false);
+    this(maxHeaderTableSize, true, false, false, null);
+  }
+
+  /**
+   * Creates a new encoder that adds header fields to the dynamic table
+   * only if the given policy admits them.
+   */
+  public Encoder(int maxHeaderTableSize, IndexingPolicy indexingPolicy) {
+    this(maxHeaderTableSize, true, false, false, HpackUtil.requireNonNull(indexingPolicy));
   }
 
   /**
@@ -52,6 +83,16 @@ public final class Encoder {
       boolean useIndexing,
       boolean forceHuffmanOn,
       boolean forceHuffmanOff
+  ) {
+    this(maxHeaderTableSize, useIndexing, forceHuffmanOn, forceHuffmanOff, null);
+  }
+
+  private Encoder(
+      int maxHeaderTableSize,
+      boolean useIndexing,
+      boolean forceHuffmanOn,
+      boolean forceHuffmanOff,
+      IndexingPolicy indexingPolicy
   ) {
     if (maxHeaderTableSize < 0) {
       throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
@@ -59,28 +100,535 @@ public final class Encoder {
     this.useIndexing = useIndexing;
     this.forceHuffmanOn = forceHuffmanOn;
     this.forceHuffmanOff = forceHuffmanOff;
-    this.capacity = maxHeaderTableSize;
-    head.before = head.after = head;
+    this.indexingPolicy = indexingPolicy;
+    dynamicTable = new EncoderDynamicTable(maxHeaderTableSize);
   }
 
   /**
    * Encode the header field into the header block.
    */
   public void encodeHeader(OutputStream out, byte[] name, byte[] value, boolean sensitive) throws IOException {
+    ByteBuffer buf = getBuffer(MAX_INTEGER_LENGTH + getMaxLiteralLength(name) + getMaxLiteralLength(value));
+    encodeHeader(buf, name, null, value, sensitive);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Encode the header field into the header block.
+   */
+  public void encodeHeader(OutputStream out, HeaderName name, byte[] value, boolean sensitive) throws IOException {
+    ByteBuffer buf = getBuffer(MAX_INTEGER_LENGTH + getMaxLiteralLength(name.name) + getMaxLiteralLength(value));
+    encodeHeader(buf, name.name, name, value, sensitive);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Encode the header field into the header block at the given offset.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the array.
+   *         The encoder state is not modified in this case.
+   */
+  public int encodeHeader(byte[] out, int off, byte[] name, byte[] value, boolean sensitive) {
+    return encodeHeader(ByteBuffer.wrap(out, off, out.length - off), name, null, value, sensitive);
+  }
+
+  /**
+   * Encode the header field into the header block at the given offset.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the array.
+   *         The encoder state is not modified in this case.
+   */
+  public int encodeHeader(byte[] out, int off, HeaderName name, byte[] value, boolean sensitive) {
+    return encodeHeader(ByteBuffer.wrap(out, off, out.length - off), name.name, name, value, sensitive);
+  }
+
+  /**
+   * Encode the header field into the header block.
+   * The buffer's position is advanced by the number of bytes written.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position and the encoder state are not modified in this case.
+   */
+  public int encodeHeader(ByteBuffer out, byte[] name, byte[] value, boolean sensitive) {
+    return encodeHeader(out, name, null, value, sensitive);
+  }
+
+  /**
+   * Encode the header field into the header block.
+   * The buffer's position is advanced by the number of bytes written.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position and the encoder state are not modified in this case.
+   */
+  public int encodeHeader(ByteBuffer out, HeaderName name, byte[] value, boolean sensitive) {
+    return encodeHeader(out, name.name, name, value, sensitive);
+  }
+
+  /**
+   * Encode the prepared header field into the header block.
+   */
+  public void encodeHeader(OutputStream out, PreparedHeader header) throws IOException {
+    ByteBuffer buf = getBuffer(MAX_INTEGER_LENGTH
+        + getMaxLiteralLength(header.name.name) + getMaxLiteralLength(header.value));
+    encodeHeader(buf, header);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Encode the prepared header field into the header block at the given offset.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the array.
+   *         The encoder state is not modified in this case.
+   */
+  public int encodeHeader(byte[] out, int off, PreparedHeader header) {
+    return encodeHeader(ByteBuffer.wrap(out, off, out.length - off), header);
+  }
+
+  /**
+   * Encode the prepared header field into the header block.
+   * The buffer's position is advanced by the number of bytes written.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position and the encoder state are not modified in this case.
+   */
+  public int encodeHeader(ByteBuffer out, PreparedHeader header) {
+    int position = out.position();
+    try {
+      if (forceHuffmanOn || forceHuffmanOff || header.size > dynamicTable.capacity()) {
+        encodeHeader0(out, header.name.name, header.name, header.value, false);
+      } else {
+        encodePreparedHeader(out, header);
+      }
+    } catch (BufferOverflowException e) {
+      out.position(position);
+      throw e;
+    }
+    return out.position() - position;
+  }
+
+  /**
+   * Encode the header fields with the given names and values into the header block.
+   * The header fields are sensitive where the sensitive array, which may be null, is true.
+   */
+  public void encodeHeaders(OutputStream out, byte[][] names, byte[][] values, boolean[] sensitive)
+      throws IOException {
+    ByteBuffer buf = getBuffer(getMaxEncodedLength(names, values, sensitive));
+    encodeHeaders0(buf, names, values, sensitive);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Encode the header fields with the given names and values into the header block.
+   * The header fields are sensitive where the sensitive array, which may be null, is true.
+   * The buffer's position is advanced by the number of bytes written.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position and the encoder state are not modified in this case.
+   */
+  public int encodeHeaders(ByteBuffer out, byte[][] names, byte[][] values, boolean[] sensitive) {
+    if (out.remaining() < getMaxEncodedLength(names, values, sensitive)) {
+      // Plan the header fields to find out whether they fit before writing any of them
+      return checkpoint(names, values, sensitive).commit(out);
+    }
+    int position = out.position();
+    encodeHeaders0(out, names, values, sensitive);
+    return out.position() - position;
+  }
+
+  /**
+   * Returns an upper bound on the length of the encoded header fields.
+   */
+  private int getMaxEncodedLength(byte[][] names, byte[][] values, boolean[] sensitive) {
+    checkLengths(names, values, sensitive);
+    long length = 0;
+    for (int i = 0; i < names.length; i++) {
+      length += MAX_INTEGER_LENGTH + getMaxLiteralLength(names[i]) + getMaxLiteralLength(values[i]);
+    }
+    return (int) Math.min(length, Integer.MAX_VALUE);
+  }
+
+  private static void checkLengths(byte[][] names, byte[][] values, boolean[] sensitive) {
+    if (names.length != values.length || (sensitive != null && sensitive.length != names.length)) {
+      throw new IllegalArgumentException("Header field arrays differ in length");
+    }
+  }
+
+  /**
+   * Returns the exact number of bytes that encoding the header field would write,
+   * without modifying the dynamic table or the state of the indexing policy.
+   */
+  public int encodedSize(byte[] name, byte[] value, boolean sensitive) {
+    // Plans the representation that encodeHeader0 would choose against the dynamic table
+    int nameHash = EncoderDynamicTable.hash(name);
+    int staticNameIndex = StaticTable.getIndex(name);
+    int capacity = dynamicTable.capacity();
+    IndexType indexType = IndexType.NONE;
+    if (sensitive) {
+      indexType = IndexType.NEVER;
+    } else if (capacity == 0 || HeaderField.sizeOf(name, value) <= capacity) {
+      int index = capacity == 0 ? -1 : dynamicTable.getIndex(name, nameHash, value);
+      if (index != -1) {
+        index += StaticTable.length;
+      } else {
+        index = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
+      }
+      if (index != -1) {
+        return getIntegerLength(7, index);
+      }
+      if (capacity != 0 && peekIndexing(name, nameHash, value)) {
+        indexType = IndexType.INCREMENTAL;
+      }
+    }
+
+    int nameIndex = staticNameIndex;
+    if (nameIndex == -1 && capacity != 0) {
+      nameIndex = getDynamicNameIndex(name, nameHash);
+    }
+    int size = getIntegerLength(indexType == IndexType.INCREMENTAL ? 6 : 4, nameIndex == -1 ? 0 : nameIndex);
+    if (nameIndex == -1) {
+      size += getLiteralLength(name, planStringLiteral(name));
+    }
+    int valueLiteral;
+    if (huffmanStates != null && !forceHuffmanOn && !forceHuffmanOff) {
+      int slot = nameHash & (huffmanStates.length - 1);
+      int state = huffmanNames[slot] == nameHash ? huffmanStates[slot] : 0;
+      valueLiteral = planValueLiteral(state, value);
+    } else {
+      valueLiteral = planStringLiteral(value);
+    }
+    return size + getLiteralLength(value, valueLiteral);
+  }
+
+  /**
+   * Returns the exact number of bytes that encoding the header fields would write,
+   * without modifying the dynamic table or the state of the indexing policy.
+   * @see #encodeHeaders(ByteBuffer, byte[][], byte[][], boolean[])
+   */
+  public int encodedSize(byte[][] names, byte[][] values, boolean[] sensitive) {
+    return checkpoint(names, values, sensitive).size();
+  }
+
+  /**
+   * Plans the encoding of the header fields without modifying the dynamic table
+   * or the state of the indexing policy, which records the header fields on commit.
+   * The checkpoint knows the exact size of the encoded header fields and can then
+   * write them directly into the final buffer, as long as the dynamic table is not
+   * modified in between. The arrays must not be modified until the checkpoint is committed.
+   * The header fields are sensitive where the sensitive array, which may be null, is true.
+   */
+  public Checkpoint checkpoint(byte[][] names, byte[][] values, boolean[] sensitive) {
+    checkLengths(names, values, sensitive);
+    Checkpoint checkpoint = new Checkpoint(this, names, values);
+    VirtualTable table = new VirtualTable(dynamicTable, names.length);
+    for (int i = 0; i < names.length; i++) {
+      plan(checkpoint, table, i, sensitive != null && sensitive[i]);
+    }
+    return checkpoint;
+  }
+
+  // Plans the representation that encodeHeader0 would choose for the header field,
+  // adding header fields to the virtual table instead of the dynamic table.
+  private void plan(Checkpoint checkpoint, VirtualTable table, int i, boolean sensitive) {
+    byte[] name = checkpoint.names[i];
+    byte[] value = checkpoint.values[i];
+    int nameHash = EncoderDynamicTable.hash(name);
+    int staticNameIndex = StaticTable.getIndex(name);
+
+    if (sensitive) {
+      int nameIndex = staticNameIndex != -1 ? staticNameIndex : table.getNameIndex(name, nameHash);
+      checkpoint.planLiteral(i, IndexType.NEVER, nameIndex, nameHash);
+      return;
+    }
+
+    int capacity = dynamicTable.capacity();
+    if (capacity == 0) {
+      int staticTableIndex = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
+      if (staticTableIndex == -1) {
+        checkpoint.planLiteral(i, IndexType.NONE, staticNameIndex, nameHash);
+      } else {
+        checkpoint.planIndexed(i, staticTableIndex);
+      }
+      return;
+    }
+
+    int headerSize = HeaderField.sizeOf(name, value);
+    if (headerSize > capacity) {
+      int nameIndex = staticNameIndex != -1 ? staticNameIndex : table.getNameIndex(name, nameHash);
+      checkpoint.planLiteral(i, IndexType.NONE, nameIndex, nameHash);
+      return;
+    }
+
+    int dynamicTableIndex = table.getIndex(name, nameHash, value);
+    if (dynamicTableIndex != -1) {
+      checkpoint.planIndexed(i, dynamicTableIndex + StaticTable.length);
+      return;
+    }
+    int staticTableIndex = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
+    if (staticTableIndex != -1) {
+      checkpoint.planIndexed(i, staticTableIndex);
+      return;
+    }
+    int nameIndex = staticNameIndex != -1 ? staticNameIndex : table.getNameIndex(name, nameHash);
+    boolean index = useIndexing;
+    if (index && checkpoint.policy != null) {
+      checkpoint.consulted[i] = true;
+      index = checkpoint.policy.shouldIndex(name, nameHash, value);
+    }
+    checkpoint.planLiteral(i, index ? IndexType.INCREMENTAL : IndexType.NONE, nameIndex, nameHash);
+    if (index) {
+      table.add(name, nameHash, value, headerSize);
+    }
+  }
+
+  /**
+   * Returns the Huffman encoded length of the string literal that encodeStringLiteral
+   * would write, or -1 if it would write the raw string.
+   */
+  private int planStringLiteral(byte[] string) {
+    if (forceHuffmanOff) {
+      return -1;
+    }
+    int huffmanLength = Huffman.ENCODER.getEncodedLength(string);
+    return forceHuffmanOn || huffmanLength < string.length ? huffmanLength : -1;
+  }
+
+  /**
+   * Returns the Huffman encoded length of the value string literal that encodeValueLiteral
+   * would write with the given adaptive Huffman state, or -1 if it would write the raw string.
+   * The state is updated as encodeValueLiteral would update it.
+   */
+  private static int planValueLiteral(int[] names, int[] states, int nameHash, byte[] value) {
+    int slot = huffmanSlot(names, states, nameHash);
+    int huffmanLength = planValueLiteral(states[slot], value);
+    updateHuffmanState(states, slot, value, huffmanLength != -1);
+    return huffmanLength;
+  }
+
+  /**
+   * Returns the Huffman encoded length of the value string literal that encodeValueLiteral
+   * would write in the given adaptive Huffman state, or -1 if it would write the raw string.
+   */
+  private static int planValueLiteral(int state, byte[] value) {
+    if (state < 0) {
+      return -1;
+    }
+    int length = Huffman.ENCODER.getEncodedLength(value);
+    return value.length != 0 && length < value.length ? length : -1;
+  }
+
+  /**
+   * Returns the length of the string literal with the given Huffman encoded length,
+   * or of the raw string if the Huffman encoded length is -1.
+   */
+  private static int getLiteralLength(byte[] string, int huffmanLength) {
+    int length = huffmanLength == -1 ? string.length : huffmanLength;
+    return getIntegerLength(7, length) + length;
+  }
+
+  private int commit(Checkpoint checkpoint, ByteBuffer out) {
+    if (checkpoint.generation != dynamicTable.generation()) {
+      throw new IllegalStateException("The dynamic table was modified");
+    }
+    if (out.remaining() < checkpoint.size) {
+      throw new BufferOverflowException();
+    }
+    int position = out.position();
+    for (int i = 0; i < checkpoint.names.length; i++) {
+      IndexType indexType = checkpoint.indexTypes[i];
+      int index = checkpoint.indexes[i];
+      if (indexType == null) {
+        // Section 6.1. Indexed Header Field Representation
+        encodeInteger(out, 0x80, 7, index);
+        continue;
+      }
+      byte[] name = checkpoint.names[i];
+      byte[] value = checkpoint.values[i];
+      if (checkpoint.consulted[i]) {
+        // Record the header field in the policy, whose decision was planned
+        indexingPolicy.shouldIndex(name, checkpoint.nameHashes[i], value);
+      }
+      encodeLiteralPrefix(out, indexType, index);
+      if (index == -1) {
+        encodePlannedLiteral(out, name, checkpoint.nameLiterals[i]);
+      }
+      encodePlannedLiteral(out, value, checkpoint.valueLiterals[i]);
+      if (checkpoint.huffmanStates != null && huffmanStates != null) {
+        // Apply the planned outcome to the current state, which may have changed since the checkpoint
+        int slot = huffmanSlot(huffmanNames, huffmanStates, checkpoint.nameHashes[i]);
+        updateHuffmanState(huffmanStates, slot, value, checkpoint.valueLiterals[i] != -1);
+      }
+      if (indexType == IndexType.INCREMENTAL) {
+        dynamicTable.add(name, 0, name.length, checkpoint.nameHashes[i], value, 0, value.length);
+      }
+    }
+    return out.position() - position;
+  }
+
+  private static void encodePlannedLiteral(ByteBuffer out, byte[] string, int huffmanLength) {
+    if (huffmanLength == -1) {
+      encodeRawLiteral(out, string);
+    } else {
+      encodeHuffmanLiteral(out, string, huffmanLength);
+    }
+  }
+
+  // Equivalent to encodeHeader0 for each header field. The buffer has room for the
+  // header fields, so they are encoded without the bookkeeping that restores the
+  // buffer when it overflows. The table capacity, indexing and Huffman modes are
+  // read once for the block, and the hash of each name is computed once for the
+  // table lookups, the indexing policy and the adaptive Huffman state.
+  private void encodeHeaders0(ByteBuffer out, byte[][] names, byte[][] values, boolean[] sensitive) {
+    int capacity = dynamicTable.capacity();
+    boolean indexing = useIndexing && capacity != 0;
+    IndexingPolicy policy = indexingPolicy;
+    boolean adaptive = huffmanStates != null && !forceHuffmanOn && !forceHuffmanOff;
+    for (int i = 0; i < names.length; i++) {
+      byte[] name = names[i];
+      byte[] value = values[i];
+      int staticNameIndex = StaticTable.getIndex(name);
+      int nameHash = EncoderDynamicTable.hash(name);
+
+      IndexType indexType = IndexType.NONE;
+      if (sensitive != null && sensitive[i]) {
+        indexType = IndexType.NEVER;
+      } else if (capacity == 0 || HeaderField.sizeOf(name, value) <= capacity) {
+        int index = capacity == 0 ? -1 : dynamicTable.getIndex(name, nameHash, value);
+        if (index != -1) {
+          index += StaticTable.length;
+        } else {
+          index = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
+        }
+        if (index != -1) {
+          // Section 6.1. Indexed Header Field Representation
+          encodeInteger(out, 0x80, 7, index);
+          continue;
+        }
+        if (indexing && (policy == null || policy.shouldIndex(name, nameHash, value))) {
+          indexType = IndexType.INCREMENTAL;
+        }
+      }
+
+      // An empty dynamic table has no names to look up
+      int nameIndex = staticNameIndex;
+      if (nameIndex == -1 && capacity != 0) {
+        nameIndex = getDynamicNameIndex(name, nameHash);
+      }
+      encodeLiteralPrefix(out, indexType, nameIndex);
+      if (nameIndex == -1) {
+        encodeStringLiteral(out, name);
+      }
+      if (adaptive) {
+        encodeValueLiteral(out, nameHash, value);
+      } else {
+        encodeStringLiteral(out, value);
+      }
+      if (indexType == IndexType.INCREMENTAL) {
+        dynamicTable.add(name, 0, name.length, nameHash, value, 0, value.length);
+      }
+    }
+  }
+
+  /**
+   * Encode the prepared header fields into the header block.
+   */
+  public void encodeHeaders(OutputStream out, List<PreparedHeader> headers) throws IOException {
+    CachedBlock block = getCachedBlock(headers);
+    if (block != null) {
+      out.write(block.bytes);
+      return;
+    }
+    int length = 0;
+    for (int i = 0; i < headers.size(); i++) {
+      PreparedHeader header = headers.get(i);
+      length += MAX_INTEGER_LENGTH + getMaxLiteralLength(header.name.name) + getMaxLiteralLength(header.value);
+    }
+    ByteBuffer buf = getBuffer(length);
+    encodeHeaders(buf, headers);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Encode the prepared header fields into the header block.
+   * The buffer's position is advanced by the number of bytes written.
+   * Returns the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position is left after the last header field that was
+   *         written in full, and the encoder state reflects the header fields
+   *         before that position.
+   */
+  public int encodeHeaders(ByteBuffer out, List<PreparedHeader> headers) {
+    CachedBlock block = getCachedBlock(headers);
+    if (block != null) {
+      out.put(block.bytes);
+      return block.bytes.length;
+    }
+    int position = out.position();
+    boolean indexed = true;
+    for (int i = 0; i < headers.size(); i++) {
+      int start = out.position();
+      encodeHeader(out, headers.get(i));
+      // Section 6.1. Indexed Header Field Representation
+      indexed &= (out.get(start) & 0x80) != 0;
+    }
+
+    // A block of indexed header fields did not modify the dynamic table
+    // and encodes the same way until the dynamic table is modified
+    if (blockCache != null && indexed) {
+      ByteBuffer buf = out.duplicate();
+      buf.limit(buf.position());
+      buf.position(position);
+      byte[] bytes = new byte[buf.remaining()];
+      buf.get(bytes);
+      int slot = System.identityHashCode(headers) & (blockCache.length - 1);
+      blockCache[slot] = new CachedBlock(headers, dynamicTable.generation(), bytes);
+    }
+    return out.position() - position;
+  }
+
+  /**
+   * Returns the cached encoding of the header fields if it is still valid, or null.
+   */
+  private CachedBlock getCachedBlock(List<PreparedHeader> headers) {
+    if (blockCache == null) {
+      return null;
+    }
+    CachedBlock block = blockCache[System.identityHashCode(headers) & (blockCache.length - 1)];
+    if (block == null || block.generation != dynamicTable.generation() || !block.matches(headers)) {
+      return null;
+    }
+    return block;
+  }
+
+  private int encodeHeader(ByteBuffer out, byte[] name, HeaderName headerName, byte[] value, boolean sensitive) {
+    int position = out.position();
+    try {
+      encodeHeader0(out, name, headerName, value, sensitive);
+    } catch (BufferOverflowException e) {
+      out.position(position);
+      throw e;
+    }
+    return out.position() - position;
+  }
+
+  // The dynamic table is only modified after the header field has been written
+  // so that an overflow of the output buffer leaves the encoder unchanged.
+  // The header name, if not null, holds the precomputed properties of the name.
+  private void encodeHeader0(ByteBuffer out, byte[] name, HeaderName headerName, byte[] value, boolean sensitive) {
+    int staticNameIndex = headerName != null ? headerName.staticIndex : StaticTable.getIndex(name);
 
     // If the header value is sensitive then it must never be indexed
     if (sensitive) {
-      int nameIndex = getNameIndex(name);
-      encodeLiteral(out, name, value, IndexType.NEVER, nameIndex);
+      int nameIndex = getNameIndex(name, headerName, staticNameIndex);
+      encodeLiteral(out, name, headerName, value, IndexType.NEVER, nameIndex);
       return;
     }
 
     // If the peer will only use the static table
+    int capacity = dynamicTable.capacity();
     if (capacity == 0) {
-      int staticTableIndex = StaticTable.getIndex(name, value);
+      int staticTableIndex = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
       if (staticTableIndex == -1) {
-        int nameIndex = StaticTable.getIndex(name);
-        encodeLiteral(out, name, value, IndexType.NONE, nameIndex);
+        encodeLiteral(out, name, headerName, value, IndexType.NONE, staticNameIndex);
       } else {
         encodeInteger(out, 0x80, 7, staticTableIndex);
       }
@@ -91,76 +639,189 @@ public final class Encoder {
 
     // If the headerSize is greater than the max table size then it must be encoded literally
     if (headerSize > capacity) {
-      int nameIndex = getNameIndex(name);
-      encodeLiteral(out, name, value, IndexType.NONE, nameIndex);
+      int nameIndex = getNameIndex(name, headerName, staticNameIndex);
+      encodeLiteral(out, name, headerName, value, IndexType.NONE, nameIndex);
       return;
     }
 
-    HeaderEntry headerField = getEntry(name, value);
-    if (headerField != null) {
-      int index = getIndex(headerField.index) + StaticTable.length;
+    int nameHash = headerName != null ? headerName.hash : EncoderDynamicTable.hash(name);
+    int dynamicTableIndex = dynamicTable.getIndex(name, nameHash, value);
+    if (dynamicTableIndex != -1) {
+      int index = dynamicTableIndex + StaticTable.length;
       // Section 6.1. Indexed Header Field Representation
       encodeInteger(out, 0x80, 7, index);
     } else {
-      int staticTableIndex = StaticTable.getIndex(name, value);
+      int staticTableIndex = StaticTable.getIndex(staticNameIndex, value, 0, value.length);
       if (staticTableIndex != -1) {
         // Section 6.1. Indexed Header Field Representation
         encodeInteger(out, 0x80, 7, staticTableIndex);
       } else {
-        int nameIndex = getNameIndex(name);
-        if (useIndexing) {
-          ensureCapacity(headerSize);
+        int nameIndex = staticNameIndex;
+        if (nameIndex == -1) {
+          nameIndex = getDynamicNameIndex(name, nameHash);
         }
-        IndexType indexType = useIndexing ? IndexType.INCREMENTAL : IndexType.NONE;
-        encodeLiteral(out, name, value, indexType, nameIndex);
-        if (useIndexing) {
-          add(name, value);
+        boolean fits = out.remaining() >= MAX_INTEGER_LENGTH + getMaxLiteralLength(name) + getMaxLiteralLength(value);
+        boolean index = shouldIndex(name, nameHash, value, fits);
+        IndexType indexType = index ? IndexType.INCREMENTAL : IndexType.NONE;
+        encodeLiteral(out, name, headerName, value, indexType, nameIndex);
+        if (!fits) {
+          recordIndexing(name, nameHash, value);
+        }
+        if (index) {
+          dynamicTable.add(name, 0, name.length, nameHash, value, 0, value.length);
         }
       }
     }
   }
 
+  // Equivalent to encodeHeader0 for a header field that fits in a non-empty dynamic table.
+  // The static table is consulted first as such a header field is never added to the
+  // dynamic table.
+  private void encodePreparedHeader(ByteBuffer out, PreparedHeader header) {
+    if (header.indexed != null) {
+      out.put(header.indexed);
+      return;
+    }
+    HeaderName name = header.name;
+    int index = dynamicTable.probe(name.name, name.hash, header.value);
+    if (index > 0) {
+      // Section 6.1. Indexed Header Field Representation
+      encodeInteger(out, 0x80, 7, index + StaticTable.length);
+      return;
+    }
+    boolean fits = out.remaining() >= MAX_INTEGER_LENGTH + name.literal.length + header.valueLiteral.length;
+    boolean indexed = shouldIndex(name.name, name.hash, header.value, fits);
+    if (index < 0 && name.staticIndex == -1) {
+      // The name is only in the dynamic table
+      IndexType indexType = indexed ? IndexType.INCREMENTAL : IndexType.NONE;
+      encodeLiteralPrefix(out, indexType, StaticTable.length - index);
+      out.put(header.valueLiteral);
+    } else {
+      out.put(indexed ? header.incremental : header.literal);
+    }
+    if (!fits) {
+      recordIndexing(name.name, name.hash, header.value);
+    }
+    if (indexed) {
+      dynamicTable.add(name.name, 0, name.name.length, name.hash, header.value, 0, header.value.length);
+    }
+  }
+
+  /**
+   * Reset the encoder to the state of a newly created encoder with the given
+   * maximum table size, so that it can be reused for another connection.
+   * The dynamic table is emptied but its storage is retained.
+   */
+  public void reset(int maxHeaderTableSize) {
+    if (maxHeaderTableSize < 0) {
+      throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
+    }
+    dynamicTable.clear();
+    dynamicTable.setCapacity(maxHeaderTableSize);
+    if (huffmanStates != null) {
+      Arrays.fill(huffmanStates, 0);
+    }
+    if (blockCache != null) {
+      Arrays.fill(blockCache, null);
+    }
+  }
+
+  /**
+   * Sets the number of header blocks whose encoding is cached, or 0 to disable the cache.
+   * Once a list of prepared header fields encodes to indexed header fields only,
+   * encoding the same list again replays the cached bytes until the dynamic table
+   * is modified. Lists are identified by identity and their elements are compared.
+   */
+  public void setHeaderBlockCacheSize(int maxBlocks) {
+    if (maxBlocks < 0) {
+      throw new IllegalArgumentException("Illegal Max Blocks: " + maxBlocks);
+    }
+    if (maxBlocks == 0) {
+      blockCache = null;
+      return;
+    }
+    int length = Integer.highestOneBit(maxBlocks);
+    if (length < maxBlocks) {
+      length <<= 1;
+    }
+    blockCache = new CachedBlock[length];
+  }
+
+  /**
+   * Enables or disables adaptive Huffman encoding of header field values.
+   * When enabled, values of a header field name that repeatedly do not compress
+   * are encoded without trying the Huffman code for a while, after which the
+   * Huffman code is tried again. This may cost a few bytes for some values
+   * but saves encoding values such as random tokens twice.
+   */
+  public void setAdaptiveHuffman(boolean adaptiveHuffman) {
+    if (!adaptiveHuffman) {
+      huffmanNames = null;
+      huffmanStates = null;
+    } else if (huffmanStates == null) {
+      huffmanNames = new int[HUFFMAN_NAMES];
+      huffmanStates = new int[HUFFMAN_NAMES];
+    }
+  }
+
   /**
    * Set the maximum table size.
    */
   public void setMaxHeaderTableSize(OutputStream out, int maxHeaderTableSize) throws IOException {
+    ByteBuffer buf = getBuffer(MAX_INTEGER_LENGTH);
+    setMaxHeaderTableSize(buf, maxHeaderTableSize);
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Set the maximum table size.
+   * The buffer's position is advanced by the number of bytes written.
+   * @throws BufferOverflowException if there is insufficient space in the buffer.
+   *         The buffer's position and the encoder state are not modified in this case.
+   */
+  public void setMaxHeaderTableSize(ByteBuffer out, int maxHeaderTableSize) {
     if (maxHeaderTableSize < 0) {
       throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
     }
-    if (capacity == maxHeaderTableSize) {
+    if (dynamicTable.capacity() == maxHeaderTableSize) {
       return;
     }
-    capacity = maxHeaderTableSize;
-    ensureCapacity(0);
-    encodeInteger(out, 0x20, 5, maxHeaderTableSize);
+    int position = out.position();
+    try {
+      encodeInteger(out, 0x20, 5, maxHeaderTableSize);
+    } catch (BufferOverflowException e) {
+      out.position(position);
+      throw e;
+    }
+    dynamicTable.setCapacity(maxHeaderTableSize);
   }
 
   /**
    * Return the maximum table size.
    */
   public int getMaxHeaderTableSize() {
-    return capacity;
+    return dynamicTable.capacity();
   }
 
   /**
    * Encode integer according to Section 5.1.
    */
-  private static void encodeInteger(OutputStream out, int mask, int n, int i) throws IOException {
+  static void encodeInteger(ByteBuffer out, int mask, int n, int i) {
     if (n < 0 || n > 8) {
       throw new IllegalArgumentException("N: " + n);
     }
     int nbits = 0xFF >>> (8 - n);
     if (i < nbits) {
-      out.write(mask | i);
+      out.put((byte) (mask | i));
     } else {
-      out.write(mask | nbits);
+      out.put((byte) (mask | nbits));
       int length = i - nbits;
       while (true) {
         if ((length & ~0x7F) == 0) {
-          out.write(length);
+          out.put((byte) length);
           return;
         } else {
-          out.write((length & 0x7F) | 0x80);
+          out.put((byte) ((length & 0x7F) | 0x80));
           length >>>= 7;
         }
       }
@@ -170,22 +831,188 @@ public final class Encoder {
   /**
    * Encode string literal according to Section 5.2.
    */
-  private void encodeStringLiteral(OutputStream out, byte[] string) throws IOException {
-    int huffmanLength = Huffman.ENCODER.getEncodedLength(string);
-    if ((huffmanLength < string.length && !forceHuffmanOff) || forceHuffmanOn) {
-      encodeInteger(out, 0x80, 7, huffmanLength);
-      Huffman.ENCODER.encode(out, string);
+  private void encodeStringLiteral(ByteBuffer out, byte[] string) {
+    if (forceHuffmanOn) {
+      encodeHuffmanLiteral(out, string, Huffman.ENCODER.getEncodedLength(string));
+    } else if (forceHuffmanOff) {
+      encodeRawLiteral(out, string);
+    } else {
+      encodeStringLiteralDefault(out, string);
+    }
+  }
+
+  /**
+   * Encode string literal according to Section 5.2,
+   * using the Huffman code only if it is shorter.
+   * Returns true if the Huffman code was used.
+   */
+  static boolean encodeStringLiteralDefault(ByteBuffer out, byte[] string) {
+    if (string.length == 0) {
+      encodeRawLiteral(out, string);
+      return false;
+    }
+
+    // Huffman encode in a single pass after a one byte length prefix,
+    // falling back to the raw string as soon as it is not shorter
+    int position = out.position();
+    out.put((byte) 0);
+    int huffmanLength = Huffman.ENCODER.encode(out, string, 0, string.length, string.length);
+    if (huffmanLength == -1) {
+      out.position(position);
+      encodeRawLiteral(out, string);
+      return false;
+    }
+
+    // Back-patch the length prefix, moving the encoded data if it needs more than one byte
+    int prefixLength = getIntegerLength(7, huffmanLength);
+    if (prefixLength > 1) {
+      if (out.remaining() < prefixLength - 1) {
+        throw new BufferOverflowException();
+      }
+      move(out, position + 1, position + prefixLength, huffmanLength);
+    }
+    out.position(position);
+    encodeInteger(out, 0x80, 7, huffmanLength);
+    out.position(position + prefixLength + huffmanLength);
+    return true;
+  }
+
+  /**
+   * Returns the number of bytes needed to encode the integer according to Section 5.1.
+   */
+  private static int getIntegerLength(int n, int i) {
+    int nbits = 0xFF >>> (8 - n);
+    int length = 1;
+    if (i >= nbits) {
+      for (i -= nbits; ; i >>>= 7) {
+        length++;
+        if ((i & ~0x7F) == 0) {
+          break;
+        }
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Moves length bytes of the buffer to a higher index.
+   */
+  private static void move(ByteBuffer buf, int from, int to, int length) {
+    if (buf.hasArray()) {
+      byte[] array = buf.array();
+      int offset = buf.arrayOffset();
+      System.arraycopy(array, offset + from, array, offset + to, length);
     } else {
-      encodeInteger(out, 0x00, 7, string.length);
-      out.write(string, 0, string.length);
+      for (int i = length - 1; i >= 0; i--) {
+        buf.put(to + i, buf.get(from + i));
+      }
     }
   }
 
+  private static void encodeHuffmanLiteral(ByteBuffer out, byte[] string, int huffmanLength) {
+    encodeInteger(out, 0x80, 7, huffmanLength);
+    Huffman.ENCODER.encode(out, string, 0, string.length);
+  }
+
+  private static void encodeRawLiteral(ByteBuffer out, byte[] string) {
+    encodeInteger(out, 0x00, 7, string.length);
+    out.put(string, 0, string.length);
+  }
+
+  /**
+   * Returns an upper bound on the length of the string literal representation.
+   */
+  private int getMaxLiteralLength(byte[] string) {
+    if (forceHuffmanOn) {
+      // Huffman codes are at most 30 bits long
+      return MAX_INTEGER_LENGTH + 4 * string.length;
+    }
+    return MAX_INTEGER_LENGTH + string.length;
+  }
+
+  /**
+   * Returns the cleared output buffer used by the OutputStream methods,
+   * growing it if it cannot hold the given number of bytes.
+   */
+  private ByteBuffer getBuffer(int length) {
+    if (buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() << 1));
+    }
+    buffer.clear();
+    return buffer;
+  }
+
   /**
    * Encode literal header field according to Section 6.2.
    */
-  private void encodeLiteral(OutputStream out, byte[] name, byte[] value, IndexType indexType, int nameIndex)
-      throws IOException {
+  private void encodeLiteral(ByteBuffer out, byte[] name, HeaderName headerName, byte[] value,
+      IndexType indexType, int nameIndex) {
+    encodeLiteralPrefix(out, indexType, nameIndex);
+    if (nameIndex == -1) {
+      if (headerName != null && !forceHuffmanOn && !forceHuffmanOff) {
+        out.put(headerName.literal);
+      } else {
+        encodeStringLiteral(out, name);
+      }
+    }
+    if (huffmanStates != null && !forceHuffmanOn && !forceHuffmanOff) {
+      encodeValueLiteral(out, headerName != null ? headerName.hash : EncoderDynamicTable.hash(name), value);
+    } else {
+      encodeStringLiteral(out, value);
+    }
+  }
+
+  /**
+   * Encode the value string literal, skipping the Huffman code
+   * while values of the header field name have not been compressing.
+   */
+  private void encodeValueLiteral(ByteBuffer out, int nameHash, byte[] value) {
+    // The state is only updated once the value has been written,
+    // so that an overflow of the output buffer leaves it unchanged
+    int slot = nameHash & (huffmanStates.length - 1);
+    boolean huffman;
+    if (huffmanNames[slot] == nameHash && huffmanStates[slot] < 0) {
+      encodeRawLiteral(out, value);
+      huffman = false;
+    } else {
+      huffman = encodeStringLiteralDefault(out, value);
+    }
+    updateHuffmanState(huffmanStates, huffmanSlot(huffmanNames, huffmanStates, nameHash), value, huffman);
+  }
+
+  /**
+   * Returns the slot of the adaptive Huffman state of the name,
+   * resetting the state if the slot belonged to another name.
+   */
+  private static int huffmanSlot(int[] names, int[] states, int nameHash) {
+    int slot = nameHash & (states.length - 1);
+    if (names[slot] != nameHash) {
+      names[slot] = nameHash;
+      states[slot] = 0;
+    }
+    return slot;
+  }
+
+  /**
+   * Update the adaptive Huffman state after a value string literal was written,
+   * raw while the Huffman code is skipped, or Huffman encoded if it compressed.
+   */
+  private static void updateHuffmanState(int[] states, int slot, byte[] value, boolean huffman) {
+    int state = states[slot];
+    if (state < 0) {
+      states[slot] = state + 1;
+    } else if (huffman) {
+      states[slot] = 0;
+    } else if (value.length != 0) {
+      states[slot] = state + 1 == HUFFMAN_MISSES ? -HUFFMAN_RESAMPLE : state + 1;
+    }
+  }
+
+  /**
+   * Encode the first byte and the name index of a literal header field
+   * according to Section 6.2. A name index of -1 denotes a literal name.
+   */
+  static void encodeLiteralPrefix(ByteBuffer out, IndexType indexType, int nameIndex) {
     int mask;
     int prefixBits;
     switch(indexType) {
@@ -205,35 +1032,56 @@ public final class Encoder {
       throw new IllegalStateException("should not reach here");
     }
     encodeInteger(out, mask, prefixBits, nameIndex == -1 ? 0 : nameIndex);
-    if (nameIndex == -1) {
-      encodeStringLiteral(out, name);
+  }
+
+  /**
+   * Returns true if a header field that is not in the dynamic table should be added to it.
+   */
+  private boolean shouldIndex(byte[] name, int nameHash, byte[] value) {
+    return useIndexing && (indexingPolicy == null || indexingPolicy.shouldIndex(name, nameHash, value));
+  }
+
+  // The policy records the header field as it decides, so unless the literal is known
+  // to fit in the buffer, a fork of the policy decides and the header field is recorded
+  // with recordIndexing once the literal has been written.
+  private boolean shouldIndex(byte[] name, int nameHash, byte[] value, boolean fits) {
+    if (fits || indexingPolicy == null) {
+      return shouldIndex(name, nameHash, value);
     }
-    encodeStringLiteral(out, value);
+    return peekIndexing(name, nameHash, value);
   }
 
-  private int getNameIndex(byte[] name) {
-    int index = StaticTable.getIndex(name);
-    if (index == -1) {
-      index = getIndex(name);
-      if (index >= 0) {
-        index += StaticTable.length;
-      }
+  // Returns the decision of the policy without recording the header field
+  private boolean peekIndexing(byte[] name, int nameHash, byte[] value) {
+    if (!useIndexing || indexingPolicy == null) {
+      return useIndexing;
     }
-    return index;
+    if (indexingPolicy instanceof IndexingPolicies.FrequencySketch) {
+      // The sketch can estimate the frequency without a fork
+      return ((IndexingPolicies.FrequencySketch) indexingPolicy).peek(nameHash, value);
+    }
+    return indexingPolicy.fork().shouldIndex(name, nameHash, value);
   }
 
-  /**
-   * Ensure that the dynamic table has enough room to hold 'headerSize' more bytes.
-   * Removes the oldest entry from the dynamic table until sufficient space is available.
-   */
-  private void ensureCapacity(int headerSize) throws IOException {
-    while (size + headerSize > capacity) {
-      int index = length();
-      if (index == 0) {
-        break;
-      }
-      remove();
+  private void recordIndexing(byte[] name, int nameHash, byte[] value) {
+    if (useIndexing && indexingPolicy != null) {
+      indexingPolicy.shouldIndex(name, nameHash, value);
+    }
+  }
+
+  private int getNameIndex(byte[] name, HeaderName headerName, int staticNameIndex) {
+    if (staticNameIndex != -1) {
+      return staticNameIndex;
+    }
+    return getDynamicNameIndex(name, headerName != null ? headerName.hash : EncoderDynamicTable.hash(name));
+  }
+
+  private int getDynamicNameIndex(byte[] name, int nameHash) {
+    int index = dynamicTable.getIndex(name, nameHash);
+    if (index >= 0) {
+      index += StaticTable.length;
     }
+    return index;
   }
 
   /**
@@ -241,7 +1089,7 @@ public final class Encoder {
    * Exposed for testing.
    */
   int length() {
-    return size == 0 ? 0 : head.after.index - head.before.index + 1;
+    return dynamicTable.length();
   }
 
   /**
@@ -249,7 +1097,7 @@ public final class Encoder {
    * Exposed for testing.
    */
   int size() {
-    return size;
+    return dynamicTable.size();
   }
 
   /**
@@ -257,203 +1105,217 @@ public final class Encoder {
    * Exposed for testing.
    */
   HeaderField getHeaderField(int index) {
-    HeaderEntry entry = head;
-    while(index-- >= 0) {
-      entry = entry.before;
-    }
-    return entry;
+    return dynamicTable.getEntry(index + 1);
   }
 
   /**
-   * Returns the header entry with the lowest index value for the header field.
-   * Returns null if header field is not in the dynamic table.
+   * The encoding of a list of prepared header fields as indexed header fields.
    */
-  private HeaderEntry getEntry(byte[] name, byte[] value) {
-    if (length() == 0 || name == null || value == null) {
-      return null;
-    }
-    int h = hash(name);
-    int i = index(h);
-    for (HeaderEntry e = headerFields[i]; e != null; e = e.next) {
-      if (e.hash == h &&
-          HpackUtil.equals(name, e.name) &&
-          HpackUtil.equals(value, e.value)) {
-        return e;
-      }
-    }
-    return null;
-  }
+  private static final class CachedBlock {
 
-  /**
-   * Returns the lowest index value for the header field name in the dynamic table.
-   * Returns -1 if the header field name is not in the dynamic table.
-   */
-  private int getIndex(byte[] name) {
-    if (length() == 0 || name == null) {
-      return -1;
+    private final List<PreparedHeader> list;
+    private final PreparedHeader[] headers;
+    private final int generation;
+    private final byte[] bytes;
+
+    CachedBlock(List<PreparedHeader> list, int generation, byte[] bytes) {
+      this.list = list;
+      this.headers = list.toArray(new PreparedHeader[list.size()]);
+      this.generation = generation;
+      this.bytes = bytes;
     }
-    int h = hash(name);
-    int i = index(h);
-    int index = -1;
-    for (HeaderEntry e = headerFields[i]; e != null; e = e.next) {
-      if (e.hash == h && HpackUtil.equals(name, e.name)) {
-        index = e.index;
-        break;
+
+    boolean matches(List<PreparedHeader> list) {
+      if (this.list != list || headers.length != list.size()) {
+        return false;
+      }
+      for (int i = 0; i < headers.length; i++) {
+        if (headers[i] != list.get(i)) {
+          return false;
+        }
       }
+      return true;
     }
-    return getIndex(index);
   }
 
   /**
-   * Compute the index into the dynamic table given the index in the header entry.
+   * The planned encoding of a list of header fields.
+   * @see Encoder#checkpoint(byte[][], byte[][], boolean[])
    */
-  private int getIndex(int index) {
-    if (index == -1) {
-      return index;
-    }
-    return index - head.before.index + 1;
-  }
+  public static final class Checkpoint {
 
-  /**
-   * Add the header field to the dynamic table.
-   * Entries are evicted from the dynamic table until the size of the table
-   * and the new header field is less than the table's capacity.
-   * If the size of the new entry is larger than the table's capacity,
-   * the dynamic table will be cleared.
-   */
-  private void add(byte[] name, byte[] value) {
-    int headerSize = HeaderField.sizeOf(name, value);
+    private final Encoder encoder;
+    private final byte[][] names;
+    private final byte[][] values;
+    private final int generation;
 
-    // Clear the table if the header field size is larger than the capacity.
-    if (headerSize > capacity) {
-      clear();
-      return;
-    }
+    // a fork of the indexing policy, and the header fields for which it was consulted
+    private final IndexingPolicy policy;
+    private final boolean[] consulted;
 
-    // Evict oldest entries until we have enough capacity.
-    while (size + headerSize > capacity) {
-      remove();
-    }
+    // the representation of each header field: null for an indexed header field
+    // with the given index, otherwise a literal header field with the given name index
+    private final IndexType[] indexTypes;
+    private final int[] indexes;
 
-    // Copy name and value that modifications of original do not affect the dynamic table.
-    name = Arrays.copyOf(name, name.length);
-    value = Arrays.copyOf(value, value.length);
+    // the Huffman encoded length of each string literal, or -1 for a raw string
+    private final int[] nameLiterals;
+    private final int[] valueLiterals;
+    private final int[] nameHashes;
 
-    int h = hash(name);
-    int i = index(h);
-    HeaderEntry old = headerFields[i];
-    HeaderEntry e = new HeaderEntry(h, name, value, head.before.index - 1, old);
-    headerFields[i] = e;
-    e.addBefore(head);
-    size += headerSize;
-  }
+    // the adaptive Huffman state used to plan the header fields
+    private final int[] huffmanNames;
+    private final int[] huffmanStates;
 
-  /**
-   * Remove and return the oldest header field from the dynamic table.
-   */
-  private HeaderField remove() {
-    if (size == 0) {
-      return null;
+    private int size;
+
+    Checkpoint(Encoder encoder, byte[][] names, byte[][] values) {
+      this.encoder = encoder;
+      this.names = names;
+      this.values = values;
+      generation = encoder.dynamicTable.generation();
+      policy = encoder.indexingPolicy != null ? encoder.indexingPolicy.fork() : null;
+      consulted = new boolean[names.length];
+      indexTypes = new IndexType[names.length];
+      indexes = new int[names.length];
+      nameLiterals = new int[names.length];
+      valueLiterals = new int[names.length];
+      nameHashes = new int[names.length];
+      boolean adaptive = encoder.huffmanStates != null && !encoder.forceHuffmanOn && !encoder.forceHuffmanOff;
+      huffmanNames = adaptive ? encoder.huffmanNames.clone() : null;
+      huffmanStates = adaptive ? encoder.huffmanStates.clone() : null;
     }
-    HeaderEntry eldest = head.after;
-    int h = eldest.hash;
-    int i = index(h);
-    HeaderEntry prev = headerFields[i];
-    HeaderEntry e = prev;
-    while (e != null) {
-      HeaderEntry next = e.next;
-      if (e == eldest) {
-        if (prev == eldest) {
-          headerFields[i] = next;
-        } else {
-          prev.next = next;
-        }
-        eldest.remove();
-        size -= eldest.size();
-        return eldest;
+
+    void planIndexed(int i, int index) {
+      indexes[i] = index;
+      size += getIntegerLength(7, index);
+    }
+
+    void planLiteral(int i, IndexType indexType, int nameIndex, int nameHash) {
+      indexTypes[i] = indexType;
+      indexes[i] = nameIndex;
+      nameHashes[i] = nameHash;
+      size += getIntegerLength(indexType == IndexType.INCREMENTAL ? 6 : 4, nameIndex == -1 ? 0 : nameIndex);
+      if (nameIndex == -1) {
+        nameLiterals[i] = encoder.planStringLiteral(names[i]);
+        size += getLiteralLength(names[i], nameLiterals[i]);
+      }
+      if (huffmanStates != null) {
+        valueLiterals[i] = planValueLiteral(huffmanNames, huffmanStates, nameHash, values[i]);
+      } else {
+        valueLiterals[i] = encoder.planStringLiteral(values[i]);
       }
-      prev = e;
-      e = next;
+      size += getLiteralLength(values[i], valueLiterals[i]);
     }
-    return null;
-  }
 
-  /**
-   * Remove all entries from the dynamic table.
-   */
-  private void clear() {
-    Arrays.fill(headerFields, null);
-    head.before = head.after = head;
-    this.size = 0;
-  }
+    /**
+     * Returns the number of bytes the header fields encode to.
+     */
+    public int size() {
+      return size;
+    }
 
-  /**
-   * Returns the hash code for the given header field name.
-   */
-  private static int hash(byte[] name) {
-    int h = 0;
-    for (int i = 0; i < name.length; i++) {
-      h = 31 * h + name[i];
+    /**
+     * Encode the planned header fields into the header block.
+     * The buffer's position is advanced by the number of bytes written.
+     * Returns the number of bytes written, which is always the size of the checkpoint.
+     * @throws BufferOverflowException if there is insufficient space in the buffer.
+     *         The buffer's position and the encoder state are not modified in this case.
+     * @throws IllegalStateException if the dynamic table was modified since the checkpoint
+     */
+    public int commit(ByteBuffer out) {
+      return encoder.commit(this, out);
     }
-    if (h > 0) {
-      return h;
-    } else if (h == Integer.MIN_VALUE) {
-      return Integer.MAX_VALUE;
-    } else {
-      return -h;
+
+    /**
+     * Encode the planned header fields into the header block at the given offset.
+     * Returns the number of bytes written, which is always the size of the checkpoint.
+     * @throws BufferOverflowException if there is insufficient space in the array.
+     *         The encoder state is not modified in this case.
+     * @throws IllegalStateException if the dynamic table was modified since the checkpoint
+     */
+    public int commit(byte[] out, int off) {
+      return commit(ByteBuffer.wrap(out, off, out.length - off));
     }
   }
 
   /**
-   * Returns the index into the hash table for the hash code h.
+   * A view of the dynamic table with header fields added, and old entries evicted,
+   * without modifying the dynamic table.
    */
-  private static int index(int h) {
-    return h % BUCKET_SIZE;
-  }
+  private static final class VirtualTable {
 
-  /**
-   * A linked hash map HeaderField entry.
-   */
-  private static class HeaderEntry extends HeaderField {
-    // These fields comprise the doubly linked list used for iteration.
-    HeaderEntry before, after;
+    private final EncoderDynamicTable base;
+    private final int capacity;
+    private int size;
 
-    // These fields comprise the chained list for header fields with the same hash.
-    HeaderEntry next;
-    int hash;
+    // the number of entries of the dynamic table that have not been evicted
+    private int baseLength;
 
-    // This is used to compute the index in the dynamic table.
-    int index;
+    // the added header fields, oldest first, of which those from first on are not evicted
+    private final byte[][] names;
+    private final byte[][] values;
+    private final int[] hashes;
+    private final int[] sizes;
+    private int first;
+    private int count;
+
+    VirtualTable(EncoderDynamicTable base, int maxAdded) {
+      this.base = base;
+      capacity = base.capacity();
+      size = base.size();
+      baseLength = base.length();
+      names = new byte[maxAdded][];
+      values = new byte[maxAdded][];
+      hashes = new int[maxAdded];
+      sizes = new int[maxAdded];
+    }
 
     /**
-     * Creates new entry.
+     * Returns the lowest index of the header field in the table, or -1.
      */
-    HeaderEntry(int hash, byte[] name, byte[] value, int index, HeaderEntry next) {
-      super(name, value);
-      this.index = index;
-      this.hash = hash;
-      this.next = next;
+    int getIndex(byte[] name, int h, byte[] value) {
+      for (int i = count - 1; i >= first; i--) {
+        if (hashes[i] == h && HpackUtil.equals(names[i], name) && HpackUtil.equals(values[i], value)) {
+          return count - i;
+        }
+      }
+      // If the newest match in the dynamic table was evicted then so were all others
+      int index = base.getIndex(name, h, value);
+      return index != -1 && index <= baseLength ? index + count - first : -1;
     }
 
     /**
-     * Removes this entry from the linked list.
+     * Returns the lowest index of the header field name in the table
+     * offset by the length of the static table, or -1.
      */
-    private void remove() {
-      before.after = after;
-      after.before = before;
-      before = null; // null reference to prevent nepotism with generational GC.
-      after = null;  // null reference to prevent nepotism with generational GC.
-      next = null;   // null reference to prevent nepotism with generational GC.
+    int getNameIndex(byte[] name, int h) {
+      for (int i = count - 1; i >= first; i--) {
+        if (hashes[i] == h && HpackUtil.equals(names[i], name)) {
+          return count - i + StaticTable.length;
+        }
+      }
+      int index = base.getIndex(name, h);
+      return index != -1 && index <= baseLength ? index + count - first + StaticTable.length : -1;
     }
 
     /**
-     * Inserts this entry before the specified existing entry in the list.
+     * Adds the header field, which must fit in the table, evicting the oldest entries.
      */
-    private void addBefore(HeaderEntry existingEntry) {
-      after  = existingEntry;
-      before = existingEntry.before;
-      before.after = this;
-      after.before = this;
+    void add(byte[] name, int h, byte[] value, int headerSize) {
+      while (size + headerSize > capacity) {
+        if (baseLength > 0) {
+          size -= base.entrySize(baseLength--);
+        } else {
+          size -= sizes[first++];
+        }
+      }
+      names[count] = name;
+      values[count] = value;
+      hashes[count] = h;
+      sizes[count] = headerSize;
+      count++;
+      size += headerSize;
     }
   }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A slab dynamic table with a hash index over its entries, for use by the encoder.
+ * The index is kept in primitive arrays parallel to the slots of the table.
+ */
+final class EncoderDynamicTable extends SlabDynamicTable {
+
+  private static final int[] EMPTY_SLOTS = {};
+
+  // a process-wide random seed so that collisions cannot be predicted
+  private static final int SEED = new SecureRandom().nextInt();
+
+  // the first slot of each bucket chain, or -1
+  private int[] buckets = {-1};
+
+  // the hash code of each entry's name and the doubly linked bucket chains,
+  // ordered from the newest to the oldest entry
+  private int[] hashes = EMPTY_SLOTS;
+  private int[] next = EMPTY_SLOTS;
+  private int[] previous = EMPTY_SLOTS;
+
+  // incremented whenever the table is modified
+  private int generation;
+
+  /**
+   * Creates a new dynamic table with the specified initial capacity.
+   */
+  EncoderDynamicTable(int initialCapacity) {
+    super(initialCapacity);
+  }
+
+  /**
+   * Returns a number that changes whenever the entries or the capacity of the table change.
+   */
+  int generation() {
+    return generation;
+  }
+
+  /**
+   * Returns the lowest index of the header field in the dynamic table.
+   * The hash code of the name must be given.
+   * Returns -1 if the header field is not in the dynamic table.
+   */
+  int getIndex(byte[] name, int h, byte[] value) {
+    if (length == 0) {
+      return -1;
+    }
+    for (int i = buckets[h & (buckets.length - 1)]; i != -1; i = next[i]) {
+      if (hashes[i] == h && nameEquals(i, name) && valueEquals(i, value)) {
+        return index(i);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the lowest index of the header field name in the dynamic table.
+   * The hash code of the name must be given.
+   * Returns -1 if the header field name is not in the dynamic table.
+   */
+  int getIndex(byte[] name, int h) {
+    if (length == 0) {
+      return -1;
+    }
+    for (int i = buckets[h & (buckets.length - 1)]; i != -1; i = next[i]) {
+      if (hashes[i] == h && nameEquals(i, name)) {
+        return index(i);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the lowest index of the header field in the dynamic table.
+   * If the header field is not in the dynamic table, returns the negated lowest index
+   * of the header field name, or 0 if the name is not in the dynamic table either.
+   * The hash code of the name must be given.
+   */
+  int probe(byte[] name, int h, byte[] value) {
+    if (length == 0) {
+      return 0;
+    }
+    int nameIndex = 0;
+    for (int i = buckets[h & (buckets.length - 1)]; i != -1; i = next[i]) {
+      if (hashes[i] == h && nameEquals(i, name)) {
+        if (valueEquals(i, value)) {
+          return index(i);
+        }
+        if (nameIndex == 0) {
+          nameIndex = -index(i);
+        }
+      }
+    }
+    return nameIndex;
+  }
+
+  /**
+   * Returns the index of the entry in the given slot.
+   */
+  private int index(int slot) {
+    int index = head - slot;
+    return index <= 0 ? index + offsets.length : index;
+  }
+
+  private boolean nameEquals(int slot, byte[] name) {
+    return nameLengths[slot] == name.length
+        && HpackUtil.equals(slab, offsets[slot], name, 0, name.length);
+  }
+
+  private boolean valueEquals(int slot, byte[] value) {
+    return valueLengths[slot] == value.length
+        && HpackUtil.equals(slab, offsets[slot] + nameLengths[slot], value, 0, value.length);
+  }
+
+  @Override
+  int add(byte[] name, int nameOffset, int nameLength, byte[] value, int valueOffset, int valueLength) {
+    return add(name, nameOffset, nameLength, hash(name, nameOffset, nameLength), value, valueOffset, valueLength);
+  }
+
+  /**
+   * Add the header field, whose name has the given hash code, to the dynamic table.
+   */
+  int add(byte[] name, int nameOffset, int nameLength, int nameHash,
+      byte[] value, int valueOffset, int valueLength) {
+    generation++;
+    int slot = super.add(name, nameOffset, nameLength, value, valueOffset, valueLength);
+    if (slot != -1) {
+      hashes[slot] = nameHash;
+      link(slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Inserts the entry in the given slot at the head of its bucket chain.
+   */
+  private void link(int slot) {
+    int b = hashes[slot] & (buckets.length - 1);
+    int first = buckets[b];
+    next[slot] = first;
+    previous[slot] = -1;
+    if (first != -1) {
+      previous[first] = slot;
+    }
+    buckets[b] = slot;
+  }
+
+  @Override
+  void remove() {
+    generation++;
+    // The oldest entry is always the last entry of its bucket chain
+    int slot = tail;
+    if (previous[slot] == -1) {
+      buckets[hashes[slot] & (buckets.length - 1)] = -1;
+    } else {
+      next[previous[slot]] = -1;
+    }
+    super.remove();
+  }
+
+  @Override
+  public void clear() {
+    generation++;
+    super.clear();
+    Arrays.fill(buckets, -1);
+  }
+
+  @Override
+  public void setCapacity(int capacity) {
+    generation++;
+    super.setCapacity(capacity);
+  }
+
+  @Override
+  void resizeSlots(int slotsLength) {
+    int[] tmp = new int[slotsLength];
+    int cursor = tail;
+    for (int i = 0; i < length; i++) {
+      tmp[i] = hashes[cursor];
+      if (++cursor == hashes.length) {
+        cursor = 0;
+      }
+    }
+    super.resizeSlots(slotsLength);
+    hashes = tmp;
+    next = new int[slotsLength];
+    previous = new int[slotsLength];
+
+    // Keep the load factor at or below 0.75
+    int bucketsLength = Integer.highestOneBit(Math.max(1, slotsLength + (slotsLength / 3)));
+    if (bucketsLength < slotsLength + (slotsLength / 3)) {
+      bucketsLength <<= 1;
+    }
+    buckets = new int[bucketsLength];
+    Arrays.fill(buckets, -1);
+
+    // Link the entries oldest first so each bucket chain is ordered newest first
+    for (int i = 0; i < length; i++) {
+      link(i);
+    }
+  }
+
+  /**
+   * Returns the hash code for the given header field name.
+   * This is MurmurHash3 applied a byte at a time, seeded with a random value.
+   */
+  static int hash(byte[] name) {
+    return hash(name, 0, name.length);
+  }
+
+  private static int hash(byte[] name, int offset, int length) {
+    int h = SEED;
+    for (int i = offset; i < offset + length; i++) {
+      int k = (name[i] & 0xFF) * 0xcc9e2d51;
+      k = Integer.rotateLeft(k, 15) * 0x1b873593;
+      h = Integer.rotateLeft(h ^ k, 13) * 5 + 0xe6546b64;
+    }
+    h ^= length;
+    h = (h ^ (h >>> 16)) * 0x85ebca6b;
+    h = (h ^ (h >>> 13)) * 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+}
@@ -32,14 +32,42 @@ class HeaderField implements Comparable<HeaderField> {
   final byte[] name;
   final byte[] value;
 
+  // ISO-8859-1 decoded name and value, created on demand
+  private String nameString;
+  private String valueString;
+
   // This constructor can only be used if name and value are ISO-8859-1 encoded.
   HeaderField(String name, String value) {
-    this(name.getBytes(ISO_8859_1), value.getBytes(ISO_8859_1));
+    this(name.getBytes(ISO_8859_1), value.getBytes(ISO_8859_1), name, value);
   }
 
   HeaderField(byte[] name, byte[] value) {
+    this(name, value, null, null);
+  }
+
+  HeaderField(byte[] name, byte[] value, String nameString, String valueString) {
     this.name = requireNonNull(name);
     this.value = requireNonNull(value);
+    this.nameString = nameString;
+    this.valueString = valueString;
+  }
+
+  String nameString() {
+    String s = nameString;
+    if (s == null) {
+      s = new String(name, ISO_8859_1);
+      nameString = s;
+    }
+    return s;
+  }
+
+  String valueString() {
+    String s = valueString;
+    if (s == null) {
+      s = new String(value, ISO_8859_1);
+      valueString = s;
+    }
+    return s;
   }
 
   int size() {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of canonical header field name and value arrays
+ * that may be shared by decoders across connections.
+ * The cache is direct-mapped: an entry is evicted when a different
+ * string literal with the same hash slot is interned.
+ * This class is thread-safe and lock-free.
+ */
+public final class HeaderInternCache {
+
+  private final AtomicReferenceArray<byte[]> entries;
+  private final int mask;
+  private final int maxLength;
+
+  /**
+   * Creates a new cache.
+   * @param capacity  the number of entries, rounded up to a power of two
+   * @param maxLength the length of the longest string literal to cache
+   */
+  public HeaderInternCache(int capacity, int maxLength) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Illegal Capacity: " + capacity);
+    }
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Illegal Max Length: " + maxLength);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    entries = new AtomicReferenceArray<byte[]>(size);
+    mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Returns the length of the longest string literal that is cached.
+   */
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * Returns an array with the same contents as the given slice.
+   * The returned array is shared and must not be modified.
+   */
+  public byte[] intern(byte[] buf, int off, int len) {
+    if (len > maxLength) {
+      return Arrays.copyOfRange(buf, off, off + len);
+    }
+    int index = index(buf, off, len);
+    byte[] entry = entries.get(index);
+    if (entry != null && equals(entry, buf, off, len)) {
+      return entry;
+    }
+    entry = Arrays.copyOfRange(buf, off, off + len);
+    entries.set(index, entry);
+    return entry;
+  }
+
+  private int index(byte[] buf, int off, int len) {
+    int h = 0;
+    for (int i = off; i < off + len; i++) {
+      h = 31 * h + buf[i];
+    }
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & mask;
+  }
+
+  private static boolean equals(byte[] entry, byte[] buf, int off, int len) {
+    if (entry.length != len) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (entry[i] != buf[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+
+/**
+ * A header field name whose encoding properties are computed once.
+ * Header names are interned and immutable, and may be shared by encoders on any thread.
+ */
+public final class HeaderName {
+
+  private static final ConcurrentMap<String, HeaderName> NAMES =
+      new ConcurrentHashMap<String, HeaderName>();
+
+  // the name in ISO-8859-1
+  final byte[] name;
+
+  // the hash code used by the encoder's dynamic table
+  final int hash;
+
+  // the lowest index of the name in the static table or -1
+  final int staticIndex;
+
+  // the string literal representation of the name (Section 5.2)
+  final byte[] literal;
+
+  private final String string;
+
+  private HeaderName(String string) {
+    this.string = string;
+    name = string.getBytes(ISO_8859_1);
+    hash = EncoderDynamicTable.hash(name);
+    staticIndex = StaticTable.getIndex(name);
+    ByteBuffer buf = ByteBuffer.allocate(Encoder.MAX_INTEGER_LENGTH + name.length);
+    Encoder.encodeStringLiteralDefault(buf, name);
+    literal = Arrays.copyOf(buf.array(), buf.position());
+  }
+
+  /**
+   * Returns the header name for the given string.
+   * Header names are retained for the lifetime of the class,
+   * so only a bounded set of well-known names should be interned.
+   */
+  public static HeaderName of(String name) {
+    HeaderName headerName = NAMES.get(name);
+    if (headerName == null) {
+      HeaderName newName = new HeaderName(name);
+      headerName = NAMES.putIfAbsent(name, newName);
+      if (headerName == null) {
+        headerName = newName;
+      }
+    }
+    return headerName;
+  }
+
+  /**
+   * Returns a copy of the name in ISO-8859-1.
+   */
+  public byte[] getBytes() {
+    return name.clone();
+  }
+
+  @Override
+  public String toString() {
+    return string;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+public interface HeaderSliceListener {
+
+  /**
+   * addHeader is called by the decoder during header field emission.
+   * The name and value are slices of arrays that may be shared with the
+   * input buffer or the dynamic table. They are only valid for the duration
+   * of the call, must be copied if retained, and must not be modified.
+   */
+  public void addHeader(byte[] name, int nameOffset, int nameLength,
+      byte[] value, int valueOffset, int valueLength, boolean sensitive);
+}
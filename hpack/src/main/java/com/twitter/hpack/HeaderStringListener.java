@@ -0,0 +1,26 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+public interface HeaderStringListener {
+
+  /**
+   * addHeader is called by the decoder during header field emission.
+   * The name and value are ISO-8859-1 decoded. Indexed header fields are
+   * emitted with the same String instances as when they were first decoded.
+   */
+  public void addHeader(String name, String value, boolean sensitive);
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+/**
+ * The decoder's view of a dynamic table.
+ */
+interface HeaderTable {
+
+  /**
+   * Return the number of header fields in the dynamic table.
+   */
+  int length();
+
+  /**
+   * Return the current size of the dynamic table.
+   * This is the sum of the size of the entries.
+   */
+  int size();
+
+  /**
+   * Return the maximum allowable size of the dynamic table.
+   */
+  int capacity();
+
+  /**
+   * Return the header field at the given index.
+   * The first and newest entry is always at index 1,
+   * and the oldest entry is at the index length().
+   */
+  HeaderField getEntry(int index);
+
+  /**
+   * Add the header field to the dynamic table, evicting entries as required.
+   */
+  void add(HeaderField header);
+
+  /**
+   * Remove all entries from the dynamic table.
+   */
+  void clear();
+
+  /**
+   * Set the maximum size of the dynamic table.
+   * Entries are evicted from the dynamic table until the size of the table
+   * is less than or equal to the maximum size.
+   */
+  void setCapacity(int capacity);
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of encoder and decoder pairs that can be shared between threads.
+ * Recycling the pairs avoids allocating dynamic tables and buffers for every connection.
+ */
+public final class HpackCodecPool {
+
+  private final BlockingQueue<Codec> pool;
+  private final int maxHeaderSize;
+  private final int maxHeaderTableSize;
+
+  /**
+   * Creates a new pool.
+   * @param maxPooled          the maximum number of idle pairs retained by the pool
+   * @param maxHeaderSize      the maximum header size of each decoder
+   * @param maxHeaderTableSize the initial maximum table size of each encoder and decoder
+   */
+  public HpackCodecPool(int maxPooled, int maxHeaderSize, int maxHeaderTableSize) {
+    if (maxPooled <= 0) {
+      throw new IllegalArgumentException("Illegal Max Pooled: " + maxPooled);
+    }
+    if (maxHeaderTableSize < 0) {
+      throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
+    }
+    pool = new ArrayBlockingQueue<Codec>(maxPooled);
+    this.maxHeaderSize = maxHeaderSize;
+    this.maxHeaderTableSize = maxHeaderTableSize;
+  }
+
+  /**
+   * Returns an idle pair from the pool, or a new pair if the pool is empty.
+   */
+  public Codec acquire() {
+    Codec codec = pool.poll();
+    if (codec == null) {
+      codec = new Codec(new Encoder(maxHeaderTableSize), new Decoder(maxHeaderSize, maxHeaderTableSize));
+    }
+    return codec;
+  }
+
+  /**
+   * Resets the pair and returns it to the pool.
+   * The pair is discarded if the pool is full.
+   * The pair must not be used once it has been released.
+   */
+  public void release(Codec codec) {
+    codec.encoder.reset(maxHeaderTableSize);
+    codec.decoder.reset(maxHeaderTableSize);
+    pool.offer(codec);
+  }
+
+  /**
+   * An encoder and decoder pair for a single connection.
+   */
+  public static final class Codec {
+
+    private final Encoder encoder;
+    private final Decoder decoder;
+
+    Codec(Encoder encoder, Decoder decoder) {
+      this.encoder = encoder;
+      this.decoder = decoder;
+    }
+
+    public Encoder getEncoder() {
+      return encoder;
+    }
+
+    public Decoder getDecoder() {
+      return decoder;
+    }
+  }
+}
@@ -35,6 +35,17 @@ final class HpackUtil {
     return c == 0;
   }
 
+  /**
+   * A compare of two slices of the given length that doesn't leak timing information.
+   */
+  static boolean equals(byte[] s1, int off1, byte[] s2, int off2, int len) {
+    char c = 0;
+    for (int i = 0; i < len; i++) {
+      c |= (s1[off1 + i] ^ s2[off2 + i]);
+    }
+    return c == 0;
+  }
+
   /**
    * Checks that the specified object reference is not {@code null}.
    */
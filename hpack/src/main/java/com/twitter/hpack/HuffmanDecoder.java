@@ -15,15 +15,52 @@
  */
 package com.twitter.hpack;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 final class HuffmanDecoder {
 
   private static final IOException EOS_DECODED = new IOException("EOS Decoded");
   private static final IOException INVALID_PADDING = new IOException("Invalid Padding");
 
-  private final Node root;
+  // Each transition of the state machine consumes 4 bits of input.
+  // A transition is packed into an int as follows:
+  //   bits 0-7   the decoded symbol if EMIT is set
+  //   bit  8     EMIT: a symbol was decoded
+  //   bit  9     FAIL: the EOS symbol was decoded
+  //   bit  10    ACCEPT: the input may end in the next state
+  //   bits 16-23 the next state
+  private static final int EMIT = 0x100;
+  private static final int FAIL = 0x200;
+  private static final int ACCEPT = 0x400;
+
+  // the root state, in which the input may end
+  static final int INITIAL_STATE = ACCEPT;
+
+  // Each entry of the lookup table decodes up to 2 symbols from a 12 bit window.
+  // An entry is packed into an int as follows:
+  //   bits 0-7   the first symbol
+  //   bits 8-15  the second symbol
+  //   bits 16-19 the length of the first symbol's code
+  //   bits 20-23 the number of bits consumed by all symbols
+  //   bits 24-25 the number of symbols
+  // If no code fits in the window, bits 0-7 hold the node reached after 12 bits.
+  private static final int LOOKUP_BITS = 12;
+  private static final int LOOKUP_MASK = (1 << LOOKUP_BITS) - 1;
+
+  // the Huffman tree, the children of node i are at 2 * i and 2 * i + 1
+  // leaves are stored as ~symbol
+  private final int[] tree;
+
+  // transitions indexed by (state << 4) | nibble
+  private final int[] transitions;
+
+  // multi-symbol entries indexed by the next 12 bits of input
+  private final int[] lookup;
+
+  private final boolean multiSymbol;
 
   /**
    * Creates a new Huffman decoder with the specified Huffman coding.
@@ -31,10 +68,23 @@ final class HuffmanDecoder {
    * @param lengths the length of each Huffman code
    */
   HuffmanDecoder(int[] codes, byte[] lengths) {
+    this(codes, lengths, true);
+  }
+
+  /**
+   * Creates a new Huffman decoder with the specified Huffman coding.
+   * @param codes       the Huffman codes indexed by symbol
+   * @param lengths     the length of each Huffman code
+   * @param multiSymbol decode several symbols per table lookup
+   */
+  HuffmanDecoder(int[] codes, byte[] lengths, boolean multiSymbol) {
     if (codes.length != 257 || codes.length != lengths.length) {
       throw new IllegalArgumentException("invalid Huffman coding");
     }
-    root = buildTree(codes, lengths);
+    tree = buildTree(codes, lengths);
+    transitions = buildTransitions(tree);
+    lookup = buildLookupTable(tree);
+    this.multiSymbol = multiSymbol;
   }
 
   /**
@@ -46,113 +96,363 @@ final class HuffmanDecoder {
    *         output stream has been closed.
    */
   public byte[] decode(byte[] buf) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] out = new byte[getMaxDecodedLength(buf.length)];
+    int n = decode(buf, 0, buf.length, out, 0);
+    return Arrays.copyOf(out, n);
+  }
 
-    Node node = root;
-    int current = 0;
-    int bits = 0;
-    for (int i = 0; i < buf.length; i++) {
-      int b = buf[i] & 0xFF;
-      current = (current << 8) | b;
-      bits += 8;
-      while (bits >= 8) {
-        int c = (current >>> (bits - 8)) & 0xFF;
-        node = node.children[c];
-        bits -= node.bits;
-        if (node.isTerminal()) {
-          if (node.symbol == HpackUtil.HUFFMAN_EOS) {
-            throw EOS_DECODED;
-          }
-          baos.write(node.symbol);
-          node = root;
-        }
-      }
+  /**
+   * Decompresses the given Huffman coded string literal into the output array.
+   * The output array must have room for <code>getMaxDecodedLength(srcLen)</code> bytes.
+   * @param  src    the string literal to be decoded
+   * @param  srcOff the start offset in the string literal
+   * @param  srcLen the number of bytes to decode
+   * @param  dst    the output array for the decompressed data
+   * @param  dstOff the start offset in the output array
+   * @return the number of bytes written to the output array
+   * @throws IOException if the string literal is not a valid Huffman code.
+   */
+  public int decode(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) throws IOException {
+    if (src == null) {
+      throw new NullPointerException("src");
+    } else if (dst == null) {
+      throw new NullPointerException("dst");
+    } else if (srcOff < 0 || srcLen < 0 || srcOff > src.length - srcLen) {
+      throw new IndexOutOfBoundsException();
+    } else if (dstOff < 0 || dstOff > dst.length - getMaxDecodedLength(srcLen)) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (multiSymbol) {
+      return decodeMultiSymbol(src, srcOff, srcLen, dst, dstOff);
+    } else {
+      return decodeNibbles(src, srcOff, srcLen, dst, dstOff);
     }
+  }
 
-    while (bits > 0) {
-      int c = (current << (8 - bits)) & 0xFF;
-      node = node.children[c];
-      if (node.isTerminal() && node.bits <= bits) {
-        bits -= node.bits;
-        baos.write(node.symbol);
-        node = root;
-      } else {
-        break;
+  /**
+   * Decompresses the remaining bytes of the source buffer into the destination buffer.
+   * The positions of both buffers are advanced.
+   * The destination buffer must have room for <code>getMaxDecodedLength(src.remaining())</code> bytes.
+   * @param  src the string literal to be decoded
+   * @param  dst the buffer for the decompressed data
+   * @return the number of bytes written to the destination buffer
+   * @throws IOException if the string literal is not a valid Huffman code.
+   * @throws java.nio.BufferOverflowException if there is insufficient space in the destination buffer.
+   */
+  public int decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+    int srcLen = src.remaining();
+    if (dst.remaining() < getMaxDecodedLength(srcLen)) {
+      throw new BufferOverflowException();
+    }
+    int n;
+    if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+      n = decode(src.array(), src.arrayOffset() + src.position(), srcLen,
+          dst.array(), dst.arrayOffset() + dst.position());
+      src.position(src.limit());
+      dst.position(dst.position() + n);
+    } else {
+      int position = dst.position();
+      checkEnd(decode(INITIAL_STATE, src, srcLen, dst));
+      n = dst.position() - position;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the maximum number of bytes produced by decoding a Huffman coded string literal.
+   * @param  length the length of the Huffman coded string literal
+   * @return the maximum length of the decoded string literal
+   */
+  public static int getMaxDecodedLength(int length) {
+    // Every Huffman code is at least 5 bits long
+    return (int) (length * 8L / 5);
+  }
+
+  /**
+   * Decompresses the next bytes of a Huffman coded string literal that arrives in pieces.
+   * Decoding starts in <code>INITIAL_STATE</code> and each call returns the state
+   * to resume from. Once the entire string literal has been decoded, the final
+   * state must be passed to <code>checkEnd</code>.
+   * The destination buffer must have room for <code>getMaxDecodedLength(length)</code> bytes.
+   * @param  state  the state returned by the previous call
+   * @param  src    the buffer containing the next bytes of the string literal
+   * @param  length the number of bytes to decode
+   * @param  dst    the buffer for the decompressed data
+   * @return the state to resume from
+   * @throws IOException if the EOS symbol is decoded.
+   */
+  int decode(int state, ByteBuffer src, int length, ByteBuffer dst) throws IOException {
+    int[] transitions = this.transitions;
+    int t = state;
+    for (int i = 0; i < length; i++) {
+      int b = src.get() & 0xFF;
+
+      t = transitions[(t >>> 12) | (b >>> 4)];
+      if ((t & FAIL) != 0) {
+        throw EOS_DECODED;
+      }
+      if ((t & EMIT) != 0) {
+        dst.put((byte) t);
+      }
+
+      t = transitions[(t >>> 12) | (b & 0x0F)];
+      if ((t & FAIL) != 0) {
+        throw EOS_DECODED;
+      }
+      if ((t & EMIT) != 0) {
+        dst.put((byte) t);
       }
     }
+    return t;
+  }
 
+  /**
+   * Verifies that a string literal decoded in pieces ended on a valid boundary.
+   * @param  state the state returned by the last call to decode
+   * @throws IOException if the string literal ended with invalid padding.
+   */
+  static void checkEnd(int state) throws IOException {
     // Section 5.2. String Literal Representation
+    // A padding strictly longer than 7 bits MUST be treated as a decoding error.
     // Padding not corresponding to the most significant bits of the code
     // for the EOS symbol (0xFF) MUST be treated as a decoding error.
-    int mask = (1 << bits) - 1;
-    if ((current & mask) != mask) {
+    if ((state & ACCEPT) == 0) {
       throw INVALID_PADDING;
     }
-
-    return baos.toByteArray();
   }
 
-  private static final class Node {
+  private int decodeNibbles(byte[] src, int srcOff, int srcLen, byte[] out, int n) throws IOException {
+    int start = n;
+    int[] transitions = this.transitions;
+    int state = 0;
+    int t = ACCEPT;
+    for (int i = srcOff; i < srcOff + srcLen; i++) {
+      int b = src[i] & 0xFF;
+
+      t = transitions[(state << 4) | (b >>> 4)];
+      if ((t & FAIL) != 0) {
+        throw EOS_DECODED;
+      }
+      if ((t & EMIT) != 0) {
+        out[n++] = (byte) t;
+      }
+      state = t >>> 16;
+
+      t = transitions[(state << 4) | (b & 0x0F)];
+      if ((t & FAIL) != 0) {
+        throw EOS_DECODED;
+      }
+      if ((t & EMIT) != 0) {
+        out[n++] = (byte) t;
+      }
+      state = t >>> 16;
+    }
+
+    // Section 5.2. String Literal Representation
+    // A padding strictly longer than 7 bits MUST be treated as a decoding error.
+    // Padding not corresponding to the most significant bits of the code
+    // for the EOS symbol (0xFF) MUST be treated as a decoding error.
+    if ((t & ACCEPT) == 0) {
+      throw INVALID_PADDING;
+    }
+    return n - start;
+  }
 
-    private final int symbol;      // terminal nodes have a symbol
-    private final int bits;        // number of bits matched by the node
-    private final Node[] children; // internal nodes have children
+  private int decodeMultiSymbol(byte[] src, int srcOff, int srcLen, byte[] out, int n) throws IOException {
+    int start = n;
+    int[] lookup = this.lookup;
+    long current = 0;
+    int bits = 0;
+    int i = srcOff;
+    int end = srcOff + srcLen;
+    while (true) {
+      if (bits < LOOKUP_BITS) {
+        while (bits <= 56 && i < end) {
+          current = (current << 8) | (src[i++] & 0xFF);
+          bits += 8;
+        }
+        if (bits < LOOKUP_BITS) {
+          break;
+        }
+      }
 
-    /**
-     * Construct an internal node
-     */
-    private Node() {
-      symbol = 0;
-      bits = 8;
-      children = new Node[256];
+      int e = lookup[(int) (current >>> (bits - LOOKUP_BITS)) & LOOKUP_MASK];
+      if (e >= 1 << 24) {
+        out[n++] = (byte) e;
+        if (e >= 2 << 24) {
+          out[n++] = (byte) (e >>> 8);
+        }
+        bits -= (e >>> 20) & 0x0F;
+      } else {
+        // The code is longer than the window so walk the tree one bit at a time
+        bits -= LOOKUP_BITS;
+        int node = e & 0xFF;
+        while (true) {
+          if (bits == 0) {
+            if (i == end) {
+              // A partial code of at least 12 bits cannot be padding
+              throw INVALID_PADDING;
+            }
+            current = (current << 8) | (src[i++] & 0xFF);
+            bits = 8;
+          }
+          bits--;
+          node = tree[(node << 1) | (int) ((current >>> bits) & 1)];
+          if (node < 0) {
+            if (~node == HpackUtil.HUFFMAN_EOS) {
+              throw EOS_DECODED;
+            }
+            out[n++] = (byte) ~node;
+            break;
+          }
+        }
+      }
     }
 
-    /**
-     * Construct a terminal node
-     * @param symbol the symbol the node represents
-     * @param bits   the number of bits matched by this node
-     */
-    private Node(int symbol, int bits) {
-      assert(bits > 0 && bits <= 8);
-      this.symbol = symbol;
-      this.bits = bits;
-      children = null;
+    // Decode the symbols that fit in the remaining bits by padding the window with ones
+    while (bits > 0) {
+      int pad = LOOKUP_BITS - bits;
+      int window = (int) ((current << pad) & LOOKUP_MASK) | ((1 << pad) - 1);
+      int e = lookup[window];
+      int count = e >>> 24;
+      if (count == 0 || ((e >>> 16) & 0x0F) > bits) {
+        break;
+      }
+      out[n++] = (byte) e;
+      if (count == 2 && ((e >>> 20) & 0x0F) <= bits) {
+        out[n++] = (byte) (e >>> 8);
+        bits -= (e >>> 20) & 0x0F;
+      } else {
+        bits -= (e >>> 16) & 0x0F;
+      }
     }
 
-    private boolean isTerminal() {
-      return children == null;
+    // Section 5.2. String Literal Representation
+    // A padding strictly longer than 7 bits MUST be treated as a decoding error.
+    // Padding not corresponding to the most significant bits of the code
+    // for the EOS symbol (0xFF) MUST be treated as a decoding error.
+    int mask = (1 << bits) - 1;
+    if (bits > 7 || (current & mask) != mask) {
+      throw INVALID_PADDING;
     }
+    return n - start;
   }
 
-  private static Node buildTree(int[] codes, byte[] lengths) {
-    Node root = new Node();
-    for (int i = 0; i < codes.length; i++) {
-      insert(root, i, codes[i], lengths[i]);
+  /**
+   * Builds the Huffman tree from the Huffman codes.
+   */
+  private static int[] buildTree(int[] codes, byte[] lengths) {
+    // A complete binary tree with 257 leaves has 256 internal nodes.
+    int[] tree = new int[256 << 1];
+    int nodes = 1;
+    for (int symbol = 0; symbol < codes.length; symbol++) {
+      int code = codes[symbol];
+      int length = lengths[symbol];
+      int node = 0;
+      for (int i = length - 1; i >= 0; i--) {
+        int index = (node << 1) | ((code >>> i) & 1);
+        if (i == 0) {
+          if (tree[index] != 0) {
+            throw new IllegalStateException("invalid Huffman code: prefix not unique");
+          }
+          tree[index] = ~symbol;
+        } else {
+          int child = tree[index];
+          if (child < 0) {
+            throw new IllegalStateException("invalid Huffman code: prefix not unique");
+          }
+          if (child == 0) {
+            if (nodes == 256) {
+              throw new IllegalStateException("invalid Huffman code: too many nodes");
+            }
+            child = nodes++;
+            tree[index] = child;
+          }
+          node = child;
+        }
+      }
+    }
+    for (int i = 0; i < nodes << 1; i++) {
+      if (tree[i] == 0) {
+        throw new IllegalStateException("invalid Huffman code: incomplete");
+      }
     }
-    return root;
+    return tree;
   }
 
-  private static void insert(Node root, int symbol, int code, byte length) {
-    // traverse tree using the most significant bytes of code
-    Node current = root;
-    while (length > 8) {
-      if (current.isTerminal()) {
-        throw new IllegalStateException("invalid Huffman code: prefix not unique");
+  /**
+   * Builds the state machine from the Huffman tree.
+   * The states are the internal nodes of the Huffman tree with the root as state 0.
+   */
+  private static int[] buildTransitions(int[] tree) {
+    // Nodes are numbered in the order they were created so parents precede children
+    int[] depths = new int[256];
+    boolean[] ones = new boolean[256];
+    ones[0] = true;
+    for (int node = 0; node < 256; node++) {
+      for (int bit = 0; bit < 2; bit++) {
+        int child = tree[(node << 1) | bit];
+        if (child > 0) {
+          depths[child] = depths[node] + 1;
+          ones[child] = ones[node] && bit == 1;
+        }
       }
-      length -= 8;
-      int i = (code >>> length) & 0xFF;
-      if (current.children[i] == null) {
-        current.children[i] = new Node();
+    }
+
+    int[] transitions = new int[256 << 4];
+    for (int state = 0; state < 256; state++) {
+      for (int nibble = 0; nibble < 16; nibble++) {
+        int node = state;
+        int t = 0;
+        for (int i = 3; i >= 0; i--) {
+          node = tree[(node << 1) | ((nibble >>> i) & 1)];
+          if (node < 0) {
+            int symbol = ~node;
+            node = 0;
+            if (symbol == HpackUtil.HUFFMAN_EOS) {
+              t |= FAIL;
+              break;
+            }
+            // Every code is longer than 4 bits so at most one symbol is emitted per nibble
+            t |= EMIT | symbol;
+          }
+        }
+        // The input may end at the root or within at most 7 bits of the EOS code
+        if (ones[node] && depths[node] < 8) {
+          t |= ACCEPT;
+        }
+        transitions[(state << 4) | nibble] = t | (node << 16);
       }
-      current = current.children[i];
     }
+    return transitions;
+  }
 
-    Node terminal = new Node(symbol, length);
-    int shift = 8 - length;
-    int start = (code << shift) & 0xFF;
-    int end = 1 << shift;
-    for (int i = start; i < start + end; i++) {
-      current.children[i] = terminal;
+  /**
+   * Builds the multi-symbol lookup table from the Huffman tree.
+   */
+  private static int[] buildLookupTable(int[] tree) {
+    int[] lookup = new int[1 << LOOKUP_BITS];
+    for (int window = 0; window < lookup.length; window++) {
+      int node = 0;
+      int count = 0;
+      int e = 0;
+      for (int i = LOOKUP_BITS - 1; i >= 0 && count < 2; i--) {
+        node = tree[(node << 1) | ((window >>> i) & 1)];
+        if (node < 0) {
+          // The EOS code is 30 bits long so it never fits in the window
+          int consumed = LOOKUP_BITS - i;
+          if (count == 0) {
+            e = ~node | (consumed << 16);
+          } else {
+            e |= ~node << 8;
+          }
+          e = (e & ~(0x0F << 20)) | (consumed << 20);
+          count++;
+          node = 0;
+        }
+      }
+      lookup[window] = count == 0 ? node : e | (count << 24);
     }
+    return lookup;
   }
 }
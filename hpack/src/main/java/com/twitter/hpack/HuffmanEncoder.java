@@ -17,11 +17,25 @@ package com.twitter.hpack;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODE_LENGTHS;
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODES;
 
 final class HuffmanEncoder {
 
+  // the minimum input length for which the pair table is used, and the length
+  // of the prefix that must be ASCII, as the pairs of other symbols have codes
+  // that are too long for the table
+  private static final int PAIRS_MIN_LENGTH = 16;
+
+  // the maximum combined code length of a pair in the pair table
+  private static final int MAX_PAIR_LENGTH = 26;
+
   private final int[] codes;
   private final byte[] lengths;
+  private final boolean pairs;
 
   /**
    * Creates a new Huffman encoder with the specified Huffman coding.
@@ -29,8 +43,20 @@ final class HuffmanEncoder {
    * @param lengths the length of each Huffman code
    */
   HuffmanEncoder(int[] codes, byte[] lengths) {
+    this(codes, lengths, true);
+  }
+
+  /**
+   * Creates a new Huffman encoder with the specified Huffman coding.
+   * @param codes   the Huffman codes indexed by symbol
+   * @param lengths the length of each Huffman code
+   * @param pairs   encode two symbols per table lookup
+   */
+  HuffmanEncoder(int[] codes, byte[] lengths, boolean pairs) {
     this.codes = codes;
     this.lengths = lengths;
+    // The pair table is built from the HPACK codes
+    this.pairs = pairs && codes == HUFFMAN_CODES && lengths == HUFFMAN_CODE_LENGTHS;
   }
 
   /**
@@ -90,6 +116,132 @@ final class HuffmanEncoder {
     }
   }
 
+  /**
+   * Compresses the input string literal using the Huffman coding.
+   * @param  out  the buffer for the compressed data
+   * @param  data the string literal to be Huffman encoded
+   * @param  off  the start offset in the data
+   * @param  len  the number of bytes to encode
+   * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+   */
+  public void encode(ByteBuffer out, byte[] data, int off, int len) {
+    if (out == null) {
+      throw new NullPointerException("out");
+    } else if (data == null) {
+      throw new NullPointerException("data");
+    } else if (off < 0 || len < 0 || (off + len) < 0 || off > data.length || (off + len) > data.length) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return;
+    }
+
+    encode(out, data, off, len, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Compresses the input string literal using the Huffman coding
+   * unless the compressed data is at least <code>limit</code> bytes long.
+   * Returns the number of bytes written, or -1 if the limit was reached,
+   * in which case the buffer's position is unspecified.
+   * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+   */
+  int encode(ByteBuffer out, byte[] data, int off, int len, int limit) {
+    boolean bigEndian = out.order() == ByteOrder.BIG_ENDIAN;
+
+    // Codes are accumulated in a 64-bit register which is written a word at a time
+    long current = 0;
+    int n = 0;
+    int written = 0;
+
+    // Longer ASCII inputs are encoded a pair of symbols at a time
+    int[] pairCodes = pairs && len >= PAIRS_MIN_LENGTH && isAscii(data, off, PAIRS_MIN_LENGTH)
+        ? PairCodes.TABLE : null;
+
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      int b = data[i++] & 0xFF;
+      long code;
+      int nbits;
+      if (pairCodes != null && i < end) {
+        int b2 = data[i++] & 0xFF;
+        int pair = pairCodes[(b << 8) | b2];
+        if (pair != 0) {
+          code = pair >>> 5;
+          nbits = pair & 0x1F;
+        } else {
+          // At most 60 bits
+          code = ((long) codes[b] << lengths[b2]) | codes[b2];
+          nbits = lengths[b] + lengths[b2];
+        }
+      } else {
+        code = codes[b];
+        nbits = lengths[b];
+      }
+
+      if (n + nbits <= 64) {
+        current = (current << nbits) | code;
+        n += nbits;
+      } else {
+        written += 8;
+        if (written >= limit) {
+          return -1;
+        }
+        // Fill the register with the high bits of the code
+        int remaining = n + nbits - 64;
+        long word = (current << (64 - n)) | (code >>> remaining);
+        out.putLong(bigEndian ? word : Long.reverseBytes(word));
+        current = code & ((1L << remaining) - 1);
+        n = remaining;
+      }
+    }
+
+    int bytes = (n + 7) >> 3;
+    written += bytes;
+    if (written >= limit) {
+      return -1;
+    }
+    while (n >= 8) {
+      n -= 8;
+      out.put((byte) (current >>> n));
+    }
+    if (n > 0) {
+      current <<= (8 - n);
+      current |= (0xFF >>> n); // this should be EOS symbol
+      out.put((byte) current);
+    }
+    return written;
+  }
+
+  private static boolean isAscii(byte[] data, int off, int len) {
+    int bits = 0;
+    for (int i = off; i < off + len; i++) {
+      bits |= data[i];
+    }
+    return bits >= 0;
+  }
+
+  /**
+   * The concatenated codes and combined length of each pair of symbols,
+   * or 0 if the combined length is too long, created on first use.
+   */
+  private static final class PairCodes {
+
+    static final int[] TABLE = new int[1 << 16];
+
+    static {
+      for (int b1 = 0; b1 < 256; b1++) {
+        for (int b2 = 0; b2 < 256; b2++) {
+          int nbits = HUFFMAN_CODE_LENGTHS[b1] + HUFFMAN_CODE_LENGTHS[b2];
+          if (nbits <= MAX_PAIR_LENGTH) {
+            int code = (HUFFMAN_CODES[b1] << HUFFMAN_CODE_LENGTHS[b2]) | HUFFMAN_CODES[b2];
+            TABLE[(b1 << 8) | b2] = (code << 5) | nbits;
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Returns the number of bytes required to Huffman encode the input string literal.
    * @param  data the string literal to be Huffman encoded
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+
+/**
+ * Built-in indexing policies.
+ */
+public final class IndexingPolicies {
+
+  /**
+   * Header field names whose values rarely repeat.
+   */
+  public static final List<String> HIGH_CARDINALITY_NAMES = Collections.unmodifiableList(Arrays.asList(
+      "age",
+      "content-length",
+      "date",
+      "etag",
+      "expires",
+      "if-modified-since",
+      "if-none-match",
+      "last-modified",
+      "x-request-id"
+  ));
+
+  private static final IndexingPolicy ALWAYS = new IndexingPolicy() {
+    @Override
+    public boolean shouldIndex(byte[] name, int nameHash, byte[] value) {
+      return true;
+    }
+
+    @Override
+    public IndexingPolicy fork() {
+      return this;
+    }
+  };
+
+  private IndexingPolicies() {
+    // utility class
+  }
+
+  /**
+   * Returns a policy that indexes every header field.
+   * This is the policy of an encoder created without a policy.
+   */
+  public static IndexingPolicy always() {
+    return ALWAYS;
+  }
+
+  /**
+   * Returns a policy that never indexes header fields with the given names
+   * and indexes all others. The policy may be shared between encoders.
+   */
+  public static IndexingPolicy neverIndex(String... names) {
+    return new NameSet(names);
+  }
+
+  /**
+   * Returns a policy that never indexes header fields with the given names
+   * and indexes all others. The policy may be shared between encoders.
+   */
+  public static IndexingPolicy neverIndex(List<String> names) {
+    return new NameSet(names.toArray(new String[names.size()]));
+  }
+
+  /**
+   * Returns a policy that indexes a header field only once it has been seen before.
+   * The frequency of recent header fields is estimated with a sketch sized for the
+   * given number of distinct header fields, so that values which occur once are not
+   * admitted to the dynamic table. The policy must only be used by a single encoder.
+   */
+  public static IndexingPolicy admitRepeated(int expectedHeaders) {
+    if (expectedHeaders <= 0) {
+      throw new IllegalArgumentException("Illegal Expected Headers: " + expectedHeaders);
+    }
+    return new FrequencySketch(expectedHeaders);
+  }
+
+  /**
+   * An open addressed set of header names, looked up by the encoder's name hash.
+   */
+  static final class NameSet implements IndexingPolicy {
+
+    private final byte[][] names;
+    private final int mask;
+
+    NameSet(String[] names) {
+      int length = Integer.highestOneBit(Math.max(names.length, 1)) << 2;
+      this.names = new byte[length][];
+      mask = length - 1;
+      for (String name : names) {
+        byte[] bytes = name.getBytes(ISO_8859_1);
+        int i = EncoderDynamicTable.hash(bytes) & mask;
+        while (this.names[i] != null && !Arrays.equals(this.names[i], bytes)) {
+          i = (i + 1) & mask;
+        }
+        this.names[i] = bytes;
+      }
+    }
+
+    @Override
+    public boolean shouldIndex(byte[] name, int nameHash, byte[] value) {
+      for (int i = nameHash & mask; names[i] != null; i = (i + 1) & mask) {
+        if (Arrays.equals(names[i], name)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public IndexingPolicy fork() {
+      return this;
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters that are halved periodically (TinyLFU).
+   */
+  static class FrequencySketch implements IndexingPolicy {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    // the minimum estimated frequency at which a header field is admitted
+    private static final int ADMIT_COUNT = 2;
+
+    private final int seed;
+    final byte[][] counters;
+    final int mask;
+    private final int sampleSize;
+    int additions;
+
+    FrequencySketch(int expectedHeaders) {
+      int width = Integer.highestOneBit(Math.min(expectedHeaders, 1 << 24));
+      if (width < expectedHeaders) {
+        width <<= 1;
+      }
+      width = Math.max(width, 16);
+      seed = new SecureRandom().nextInt();
+      counters = new byte[DEPTH][width];
+      mask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    // Shares the counters of the sketch, for forks
+    FrequencySketch(FrequencySketch sketch) {
+      seed = sketch.seed;
+      counters = sketch.counters;
+      mask = sketch.mask;
+      sampleSize = sketch.sampleSize;
+      additions = sketch.additions;
+    }
+
+    @Override
+    public boolean shouldIndex(byte[] name, int nameHash, byte[] value) {
+      return increment(hash(nameHash, value)) >= ADMIT_COUNT;
+    }
+
+    @Override
+    public IndexingPolicy fork() {
+      return new Fork(this, 0);
+    }
+
+    /**
+     * Returns the decision shouldIndex would make, without recording the header field.
+     */
+    boolean peek(int nameHash, byte[] value) {
+      int h = hash(nameHash, value);
+      int h2 = Integer.rotateLeft(h * 0x9e3779b9, 16) | 1;
+      int min = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        min = Math.min(min, get(i, (h + i * h2) & mask) + 1);
+      }
+      return min >= ADMIT_COUNT;
+    }
+
+    /**
+     * Increments the frequency of the item and returns its estimated frequency.
+     */
+    int increment(int h) {
+      int h2 = Integer.rotateLeft(h * 0x9e3779b9, 16) | 1;
+      int min = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = (h + i * h2) & mask;
+        int count = get(i, index);
+        if (count < MAX_COUNT) {
+          set(i, index, ++count);
+        }
+        min = Math.min(min, count);
+      }
+      if (++additions == sampleSize) {
+        age();
+      }
+      return min;
+    }
+
+    int get(int row, int index) {
+      return counters[row][index];
+    }
+
+    void set(int row, int index, int count) {
+      counters[row][index] = (byte) count;
+    }
+
+    // Halve all counters so that the sketch follows recent frequencies
+    void age() {
+      for (byte[] row : counters) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>= 1;
+        }
+      }
+      additions /= 2;
+    }
+
+    private int hash(int nameHash, byte[] value) {
+      int h = seed ^ nameHash;
+      for (byte b : value) {
+        h = 31 * h + b;
+      }
+      h ^= value.length;
+      h = (h ^ (h >>> 16)) * 0x85ebca6b;
+      h = (h ^ (h >>> 13)) * 0xc2b2ae35;
+      return h ^ (h >>> 16);
+    }
+  }
+
+  /**
+   * A copy-on-write view of a sketch, whose changes are not visible to the sketch.
+   */
+  private static final class Fork extends FrequencySketch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // an open addressed map of the counters written by the fork, created on first
+    // write, from the position of the counter in the rows plus one to its count
+    private int[] keys;
+    private byte[] counts;
+    private int size;
+
+    // the number of times the fork was aged, which applies to unmodified counters
+    private int shift;
+
+    Fork(FrequencySketch sketch, int shift) {
+      super(sketch);
+      this.shift = shift;
+    }
+
+    @Override
+    public IndexingPolicy fork() {
+      Fork fork = new Fork(this, shift);
+      if (keys != null) {
+        fork.keys = keys.clone();
+        fork.counts = counts.clone();
+        fork.size = size;
+      }
+      return fork;
+    }
+
+    @Override
+    int get(int row, int index) {
+      if (keys != null) {
+        int key = row * (mask + 1) + index + 1;
+        for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+          if (keys[i] == key) {
+            return counts[i];
+          }
+        }
+      }
+      return counters[row][index] >> shift;
+    }
+
+    @Override
+    void set(int row, int index, int count) {
+      if (keys == null) {
+        keys = new int[INITIAL_CAPACITY];
+        counts = new byte[INITIAL_CAPACITY];
+      } else if (2 * (size + 1) > keys.length) {
+        resize();
+      }
+      put(row * (mask + 1) + index + 1, count);
+    }
+
+    private void put(int key, int count) {
+      int i = slot(key);
+      while (keys[i] != 0 && keys[i] != key) {
+        i = (i + 1) & (keys.length - 1);
+      }
+      if (keys[i] == 0) {
+        keys[i] = key;
+        size++;
+      }
+      counts[i] = (byte) count;
+    }
+
+    private int slot(int key) {
+      int h = key * 0x9e3779b9;
+      return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private void resize() {
+      int[] oldKeys = keys;
+      byte[] oldCounts = counts;
+      keys = new int[oldKeys.length << 1];
+      counts = new byte[oldKeys.length << 1];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          put(oldKeys[i], oldCounts[i]);
+        }
+      }
+    }
+
+    @Override
+    void age() {
+      // Counters of at most 15 are cleared after 4 halvings
+      shift = Math.min(shift + 1, 4);
+      if (counts != null) {
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] >>= 1;
+        }
+      }
+      additions /= 2;
+    }
+  }
+}
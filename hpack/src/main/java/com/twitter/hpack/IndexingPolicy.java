@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+/**
+ * Decides which header fields the encoder adds to the dynamic table.
+ * @see IndexingPolicies
+ */
+public interface IndexingPolicy {
+
+  /**
+   * Returns true if the header field should be added to the dynamic table.
+   * The encoder only consults the policy for header fields that are not sensitive,
+   * not in the static or dynamic table and that fit in the dynamic table.
+   * The name hash is computed once by the encoder from the bytes of the name,
+   * and equals the hash of a {@link HeaderName} with the same name.
+   * The arrays must not be modified or retained.
+   */
+  boolean shouldIndex(byte[] name, int nameHash, byte[] value);
+
+  /**
+   * Returns a policy that makes the same decisions as this policy would from its
+   * current state on, without modifying this policy. The encoder plans header fields
+   * against a fork, and records them in this policy only once they are encoded.
+   * Stateless policies return themselves.
+   */
+  IndexingPolicy fork();
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+public interface LazyHeaderListener {
+
+  /**
+   * addHeader is called by the decoder during header field emission.
+   * Huffman encoded values that are not added to the dynamic table
+   * are passed to the listener without being decoded.
+   * The name byte array must not be modified.
+   */
+  public void addHeader(byte[] name, LazyHeaderValue value, boolean sensitive);
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.io.IOException;
+
+/**
+ * A header field value that is decoded on demand.
+ */
+public final class LazyHeaderValue {
+
+  private final byte[] encoded;
+  private final boolean huffmanEncoded;
+  private volatile byte[] value;
+
+  LazyHeaderValue(byte[] encoded, boolean huffmanEncoded) {
+    this.encoded = encoded;
+    this.huffmanEncoded = huffmanEncoded;
+    if (!huffmanEncoded) {
+      value = encoded;
+    }
+  }
+
+  /**
+   * Returns true if the value was received Huffman encoded.
+   */
+  public boolean isHuffmanEncoded() {
+    return huffmanEncoded;
+  }
+
+  /**
+   * Returns the value as it was received, which may be Huffman encoded.
+   * The byte array must not be modified.
+   */
+  public byte[] getEncoded() {
+    return encoded;
+  }
+
+  /**
+   * Returns the decoded value, decoding it on the first call.
+   * The byte array must not be modified.
+   * @throws IOException if the value is not a valid Huffman code.
+   */
+  public byte[] getValue() throws IOException {
+    byte[] value = this.value;
+    if (value == null) {
+      value = Huffman.DECODER.decode(encoded);
+      this.value = value;
+    }
+    return value;
+  }
+}
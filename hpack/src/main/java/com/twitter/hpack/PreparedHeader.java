@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.twitter.hpack.HpackUtil.IndexType;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+
+/**
+ * A constant header field whose representations are computed once.
+ * Prepared headers are immutable and may be shared by encoders on any thread.
+ */
+public final class PreparedHeader {
+
+  final HeaderName name;
+  final byte[] value;
+
+  // the size of the header field in the dynamic table
+  final int size;
+
+  // the indexed representation if the header field is in the static table, or null
+  final byte[] indexed;
+
+  // the literal representations using the static name index or a literal name
+  final byte[] incremental;
+  final byte[] literal;
+
+  // the string literal representation of the value
+  final byte[] valueLiteral;
+
+  private PreparedHeader(HeaderName name, byte[] value) {
+    this.name = name;
+    this.value = value;
+    size = HeaderField.sizeOf(name.name, value);
+
+    int staticIndex = StaticTable.getIndex(name.staticIndex, value, 0, value.length);
+    if (staticIndex != -1) {
+      ByteBuffer buf = ByteBuffer.allocate(Encoder.MAX_INTEGER_LENGTH);
+      Encoder.encodeInteger(buf, 0x80, 7, staticIndex);
+      indexed = toArray(buf);
+    } else {
+      indexed = null;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(Encoder.MAX_INTEGER_LENGTH + value.length);
+    Encoder.encodeStringLiteralDefault(buf, value);
+    valueLiteral = toArray(buf);
+
+    incremental = encodeLiteral(IndexType.INCREMENTAL);
+    literal = encodeLiteral(IndexType.NONE);
+  }
+
+  /**
+   * Returns the prepared header field with the given name and value.
+   */
+  public static PreparedHeader of(HeaderName name, String value) {
+    return new PreparedHeader(HpackUtil.requireNonNull(name), value.getBytes(ISO_8859_1));
+  }
+
+  /**
+   * Returns the prepared header field with the given name and value.
+   */
+  public static PreparedHeader of(String name, String value) {
+    return of(HeaderName.of(name), value);
+  }
+
+  /**
+   * Returns the header field name.
+   */
+  public HeaderName getName() {
+    return name;
+  }
+
+  /**
+   * Returns a copy of the header field value in ISO-8859-1.
+   */
+  public byte[] getValue() {
+    return value.clone();
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + new String(value, ISO_8859_1);
+  }
+
+  private byte[] encodeLiteral(IndexType indexType) {
+    int nameIndex = name.staticIndex;
+    int nameLength = nameIndex == -1 ? name.literal.length : 0;
+    ByteBuffer buf = ByteBuffer.allocate(Encoder.MAX_INTEGER_LENGTH + nameLength + valueLiteral.length);
+    Encoder.encodeLiteralPrefix(buf, indexType, nameIndex);
+    if (nameIndex == -1) {
+      buf.put(name.literal);
+    }
+    buf.put(valueLiteral);
+    return toArray(buf);
+  }
+
+  private static byte[] toArray(ByteBuffer buf) {
+    return Arrays.copyOf(buf.array(), buf.position());
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.util.Arrays;
+
+import static com.twitter.hpack.HeaderField.HEADER_ENTRY_OVERHEAD;
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+
+/**
+ * A dynamic table that stores the names and values of its header fields
+ * back-to-back in a single circular byte array, which grows on demand
+ * up to the table's capacity.
+ * Each entry is kept contiguous, so names and values can be passed to
+ * listeners as slices of the array.
+ */
+class SlabDynamicTable implements HeaderTable {
+
+  private static final byte[] EMPTY = {};
+  private static final int[] EMPTY_SLOTS = {};
+  private static final int INITIAL_SLOTS = 8;
+
+  // header field bytes, each name immediately followed by its value
+  byte[] slab = EMPTY;
+
+  // a circular queue of entries indexed by slot, which grows on demand
+  int[] offsets = EMPTY_SLOTS;
+  int[] nameLengths = EMPTY_SLOTS;
+  int[] valueLengths = EMPTY_SLOTS;
+
+  // Strings of the entries by slot, created on demand for string listeners
+  private String[] nameStrings;
+  private String[] valueStrings;
+
+  int head;
+  int tail;
+  int length;
+  private int end; // the offset following the newest entry
+  private int size;
+  private int capacity = -1; // ensure setCapacity evicts entries
+
+  /**
+   * Creates a new dynamic table with the specified initial capacity.
+   */
+  SlabDynamicTable(int initialCapacity) {
+    setCapacity(initialCapacity);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Return the slot of the entry at the given index.
+   * The first and newest entry is always at index 1,
+   * and the oldest entry is at the index length().
+   */
+  final int slot(int index) {
+    if (index <= 0 || index > length) {
+      throw new IndexOutOfBoundsException();
+    }
+    int i = head - index;
+    return i < 0 ? i + offsets.length : i;
+  }
+
+  @Override
+  public HeaderField getEntry(int index) {
+    int i = slot(index);
+    int offset = offsets[i];
+    int valueOffset = offset + nameLengths[i];
+    return new HeaderField(Arrays.copyOfRange(slab, offset, valueOffset),
+        Arrays.copyOfRange(slab, valueOffset, valueOffset + valueLengths[i]));
+  }
+
+  /**
+   * Returns the size of the entry at the given index.
+   */
+  int entrySize(int index) {
+    int i = slot(index);
+    return nameLengths[i] + valueLengths[i] + HEADER_ENTRY_OVERHEAD;
+  }
+
+  @Override
+  public void add(HeaderField header) {
+    add(header.name, 0, header.name.length, header.value, 0, header.value.length);
+  }
+
+  /**
+   * Add the header field to the dynamic table.
+   * Entries are evicted from the dynamic table until the size of the table
+   * and the new header field is less than or equal to the table's capacity.
+   * If the size of the new entry is larger than the table's capacity,
+   * the dynamic table will be cleared.
+   * The name may be a slice of this table's array.
+   * Returns the slot of the new entry, or -1 if the table was cleared.
+   */
+  int add(byte[] name, int nameOffset, int nameLength, byte[] value, int valueOffset, int valueLength) {
+    int headerSize = nameLength + valueLength + HEADER_ENTRY_OVERHEAD;
+    if (headerSize > capacity) {
+      clear();
+      return -1;
+    }
+    while (size + headerSize > capacity) {
+      remove();
+    }
+    if (length == offsets.length) {
+      // The number of entries is bounded by the capacity
+      resizeSlots((int) Math.min(maxEntries(capacity), Math.max(INITIAL_SLOTS, 2L * length)));
+    }
+
+    // The name is copied first as it may overlap the evicted entries
+    int offset = allocate(nameLength + valueLength);
+    System.arraycopy(name, nameOffset, slab, offset, nameLength);
+    System.arraycopy(value, valueOffset, slab, offset + nameLength, valueLength);
+    int slot = head;
+    offsets[slot] = offset;
+    nameLengths[slot] = nameLength;
+    valueLengths[slot] = valueLength;
+    if (nameStrings != null) {
+      nameStrings[slot] = null;
+      valueStrings[slot] = null;
+    }
+    if (++head == offsets.length) {
+      head = 0;
+    }
+    length++;
+    size += headerSize;
+    end = offset + nameLength + valueLength;
+    return slot;
+  }
+
+  /**
+   * Returns the name of the entry in the given slot as a String.
+   */
+  String nameString(int slot) {
+    ensureStrings();
+    String s = nameStrings[slot];
+    if (s == null) {
+      s = new String(slab, offsets[slot], nameLengths[slot], ISO_8859_1);
+      nameStrings[slot] = s;
+    }
+    return s;
+  }
+
+  /**
+   * Returns the value of the entry in the given slot as a String.
+   */
+  String valueString(int slot) {
+    ensureStrings();
+    String s = valueStrings[slot];
+    if (s == null) {
+      s = new String(slab, offsets[slot] + nameLengths[slot], valueLengths[slot], ISO_8859_1);
+      valueStrings[slot] = s;
+    }
+    return s;
+  }
+
+  /**
+   * Sets the Strings of the entry in the given slot.
+   */
+  void setStrings(int slot, String name, String value) {
+    ensureStrings();
+    nameStrings[slot] = name;
+    valueStrings[slot] = value;
+  }
+
+  private void ensureStrings() {
+    if (nameStrings == null) {
+      nameStrings = new String[offsets.length];
+      valueStrings = new String[offsets.length];
+    }
+  }
+
+  /**
+   * Returns the offset of a contiguous free region of the given length.
+   */
+  private int allocate(int n) {
+    if (length > 0) {
+      int start = offsets[tail];
+      if (end > start) {
+        // The free space is split between the end and the start of the array
+        if (slab.length - end >= n) {
+          return end;
+        }
+        if (start >= n) {
+          return 0;
+        }
+      } else if (start - end >= n) {
+        return end;
+      }
+    } else if (slab.length >= n) {
+      return 0;
+    }
+
+    // The entries use less than the capacity of the table
+    // so the array never needs to grow beyond the capacity
+    int required = size - length * HEADER_ENTRY_OVERHEAD + n;
+    int slabLength = slab.length;
+    if (slabLength < required) {
+      slabLength = (int) Math.min(capacity, Math.max(required, 2L * slabLength));
+    }
+    compact(slabLength);
+    return end;
+  }
+
+  /**
+   * Remove the oldest entry from the dynamic table.
+   */
+  void remove() {
+    size -= nameLengths[tail] + valueLengths[tail] + HEADER_ENTRY_OVERHEAD;
+    if (nameStrings != null) {
+      nameStrings[tail] = null;
+      valueStrings[tail] = null;
+    }
+    if (++tail == offsets.length) {
+      tail = 0;
+    }
+    if (--length == 0) {
+      head = 0;
+      tail = 0;
+      end = 0;
+    }
+  }
+
+  @Override
+  public void clear() {
+    if (nameStrings != null) {
+      Arrays.fill(nameStrings, null);
+      Arrays.fill(valueStrings, null);
+    }
+    head = 0;
+    tail = 0;
+    length = 0;
+    end = 0;
+    size = 0;
+  }
+
+  @Override
+  public void setCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal Capacity: "+ capacity);
+    }
+
+    // initially capacity will be -1 so init won't return here
+    if (this.capacity == capacity) {
+      return;
+    }
+    this.capacity = capacity;
+
+    // initially size will be 0 so remove won't be called
+    while (size > capacity) {
+      remove();
+    }
+
+    int maxEntries = maxEntries(capacity);
+    if (offsets.length > maxEntries) {
+      resizeSlots(maxEntries);
+    }
+    if (slab.length > capacity) {
+      compact(capacity);
+    }
+  }
+
+  private static int maxEntries(int capacity) {
+    int maxEntries = capacity / HEADER_ENTRY_OVERHEAD;
+    if (capacity % HEADER_ENTRY_OVERHEAD != 0) {
+      maxEntries++;
+    }
+    return maxEntries;
+  }
+
+  /**
+   * Moves the entries, oldest first, to the start of new slot arrays of the given length.
+   */
+  void resizeSlots(int slotsLength) {
+    int[] tmpOffsets = new int[slotsLength];
+    int[] tmpNameLengths = new int[slotsLength];
+    int[] tmpValueLengths = new int[slotsLength];
+    String[] tmpNameStrings = nameStrings != null ? new String[slotsLength] : null;
+    String[] tmpValueStrings = nameStrings != null ? new String[slotsLength] : null;
+
+    int cursor = tail;
+    for (int i = 0; i < length; i++) {
+      tmpOffsets[i] = offsets[cursor];
+      tmpNameLengths[i] = nameLengths[cursor];
+      tmpValueLengths[i] = valueLengths[cursor];
+      if (nameStrings != null) {
+        tmpNameStrings[i] = nameStrings[cursor];
+        tmpValueStrings[i] = valueStrings[cursor];
+      }
+      if (++cursor == offsets.length) {
+        cursor = 0;
+      }
+    }
+
+    offsets = tmpOffsets;
+    nameLengths = tmpNameLengths;
+    valueLengths = tmpValueLengths;
+    nameStrings = tmpNameStrings;
+    valueStrings = tmpValueStrings;
+    tail = 0;
+    head = length == slotsLength ? 0 : length;
+  }
+
+  /**
+   * Moves the entries, oldest first, to the start of a new array of the given length.
+   */
+  private void compact(int slabLength) {
+    byte[] tmp = new byte[slabLength];
+    int offset = 0;
+    int cursor = tail;
+    for (int i = 0; i < length; i++) {
+      int n = nameLengths[cursor] + valueLengths[cursor];
+      System.arraycopy(slab, offsets[cursor], tmp, offset, n);
+      offsets[cursor] = offset;
+      offset += n;
+      if (++cursor == offsets.length) {
+        cursor = 0;
+      }
+    }
+    slab = tmp;
+    end = offset;
+  }
+}
@@ -16,11 +16,7 @@
 package com.twitter.hpack;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-import static com.twitter.hpack.HpackUtil.ISO_8859_1;
 
 final class StaticTable {
 
@@ -92,7 +88,13 @@ final class StaticTable {
     /* 61 */ new HeaderField("www-authenticate", EMPTY)
   );
 
-  private static final Map<String, Integer> STATIC_INDEX_BY_NAME = createMap();
+  // A perfect hash of the header field names in the static table computed
+  // from the length and the first and last bytes of the name. The multiplier
+  // was found by searching for one that maps each name to a distinct slot.
+  private static final int HASH_MULTIPLIER = 0xaa41e065;
+  private static final int HASH_SHIFT = 25;
+
+  private static final int[] STATIC_INDEX_BY_HASH = createIndex();
 
   /**
    * The number of header fields in the static table.
@@ -111,9 +113,23 @@ final class StaticTable {
    * Returns -1 if the header field name is not in the static table.
    */
   static int getIndex(byte[] name) {
-    String nameString = new String(name, 0, name.length, ISO_8859_1);
-    Integer index = STATIC_INDEX_BY_NAME.get(nameString);
-    if (index == null) {
+    return getIndex(name, 0, name.length);
+  }
+
+  /**
+   * Returns the lowest index value for the given header field name in the static table.
+   * Returns -1 if the header field name is not in the static table.
+   */
+  static int getIndex(byte[] name, int nameOffset, int nameLength) {
+    if (nameLength == 0) {
+      return -1;
+    }
+    int index = STATIC_INDEX_BY_HASH[hash(name, nameOffset, nameLength)];
+    if (index == 0) {
+      return -1;
+    }
+    byte[] entryName = getEntry(index).name;
+    if (entryName.length != nameLength || !HpackUtil.equals(entryName, 0, name, nameOffset, nameLength)) {
       return -1;
     }
     return index;
@@ -124,18 +140,38 @@ final class StaticTable {
    * Returns -1 if the header field is not in the static table.
    */
   static int getIndex(byte[] name, byte[] value) {
-    int index = getIndex(name);
-    if (index == -1) {
+    return getIndex(name, 0, name.length, value, 0, value.length);
+  }
+
+  /**
+   * Returns the index value for the given header field in the static table.
+   * Returns -1 if the header field is not in the static table.
+   */
+  static int getIndex(byte[] name, int nameOffset, int nameLength,
+      byte[] value, int valueOffset, int valueLength) {
+    return getIndex(getIndex(name, nameOffset, nameLength), value, valueOffset, valueLength);
+  }
+
+  /**
+   * Returns the index value for the header field with the name at the given index
+   * value and the given value in the static table.
+   * Returns -1 if the name index is -1 or the header field is not in the static table.
+   */
+  static int getIndex(int nameIndex, byte[] value, int valueOffset, int valueLength) {
+    if (nameIndex == -1) {
       return -1;
     }
 
     // Note this assumes all entries for a given header field are sequential.
+    int index = nameIndex;
+    byte[] entryName = getEntry(index).name;
     while (index <= length) {
       HeaderField entry = getEntry(index);
-      if (!HpackUtil.equals(name, entry.name)) {
+      if (entry.name != entryName && !HpackUtil.equals(entry.name, entryName)) {
         break;
       }
-      if (HpackUtil.equals(value, entry.value)) {
+      if (entry.value.length == valueLength
+          && HpackUtil.equals(entry.value, 0, value, valueOffset, valueLength)) {
         return index;
       }
       index++;
@@ -144,16 +180,23 @@ final class StaticTable {
     return -1;
   }
 
-  // create a map of header name to index value to allow quick lookup
-  private static Map<String, Integer> createMap() {
-    int length = STATIC_TABLE.size();
-    HashMap<String, Integer> ret = new HashMap<String, Integer>(length);
+  private static int hash(byte[] name, int nameOffset, int nameLength) {
+    int key = (nameLength << 16) | ((name[nameOffset] & 0xFF) << 8) | (name[nameOffset + nameLength - 1] & 0xFF);
+    return (key * HASH_MULTIPLIER) >>> HASH_SHIFT;
+  }
+
+  // create a perfect hash table of header name to index value to allow quick lookup
+  private static int[] createIndex() {
+    int[] ret = new int[1 << (32 - HASH_SHIFT)];
     // Iterate through the static table in reverse order to
-    // save the smallest index for a given name in the map.
-    for (int index = length; index > 0; index--) {
-      HeaderField entry = getEntry(index);
-      String name = new String(entry.name, 0, entry.name.length, ISO_8859_1);
-      ret.put(name, index);
+    // save the smallest index for a given name in the table.
+    for (int index = STATIC_TABLE.size(); index > 0; index--) {
+      byte[] name = getEntry(index).name;
+      int h = hash(name, 0, name.length);
+      if (ret[h] != 0 && !HpackUtil.equals(name, getEntry(ret[h]).name)) {
+        throw new AssertionError("static table hash collision");
+      }
+      ret[h] = index;
     }
     return ret;
   }
@@ -16,7 +16,14 @@
 package com.twitter.hpack;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -24,6 +31,8 @@ import org.junit.Test;
 import static com.twitter.hpack.HpackUtil.ISO_8859_1;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
@@ -69,6 +78,315 @@ public class DecoderTest {
     assertEquals(1, in.available());
   }
 
+  @Test
+  public void testLiteralSplitAcrossStreamWithoutMark() throws IOException {
+    // A stream that cannot unread bytes, as with a socket stream
+    final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    InputStream in = new InputStream() {
+      private byte[] buf = new byte[0];
+      private int pos;
+
+      @Override
+      public int read() {
+        fill();
+        return pos < buf.length ? buf[pos++] & 0xFF : -1;
+      }
+
+      @Override
+      public int available() {
+        fill();
+        return buf.length - pos;
+      }
+
+      @Override
+      public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+      }
+
+      private void fill() {
+        if (pos == buf.length) {
+          buf = pending.toByteArray();
+          pos = 0;
+          pending.reset();
+        }
+      }
+    };
+    assertFalse(in.markSupported());
+
+    byte[] b = Hex.decodeHex(("4004" + hex("name") + "05" + hex("value")).toCharArray());
+    pending.write(b, 0, 4);
+    decoder.decode(in, mockListener);
+    assertEquals(0, in.available());
+    verifyNoMoreInteractions(mockListener);
+
+    pending.write(b, 4, b.length - 4);
+    decoder.decode(in, mockListener);
+    assertEquals(0, in.available());
+    verify(mockListener).addHeader(getBytes("name"), getBytes("value"), false);
+    verifyNoMoreInteractions(mockListener);
+  }
+
+  @Test
+  public void testIncompleteIndexByteBuffer() throws IOException {
+    // Verify incomplete indices are not consumed
+    ByteBuffer in = ByteBuffer.wrap(Hex.decodeHex("FFF0".toCharArray()));
+    decoder.decode(in, mockListener);
+    assertEquals(1, in.position());
+    decoder.decode(in, mockListener);
+    assertEquals(1, in.position());
+  }
+
+  @Test
+  public void testLiteralSplitAcrossByteBuffers() throws IOException {
+    byte[] b = Hex.decodeHex(("4004" + hex("name") + "05" + hex("value")).toCharArray());
+    ByteBuffer in = ByteBuffer.allocateDirect(b.length);
+    in.put(b, 0, 8).flip();
+    decoder.decode(in, mockListener);
+    verifyNoMoreInteractions(mockListener);
+
+    // Value is incomplete but the available bytes are consumed
+    assertFalse(in.hasRemaining());
+    in.clear();
+    in.put(b, 8, b.length - 8).flip();
+    decoder.decode(in, mockListener);
+    assertFalse(in.hasRemaining());
+    verify(mockListener).addHeader(getBytes("name"), getBytes("value"), false);
+    verifyNoMoreInteractions(mockListener);
+  }
+
+  @Test
+  public void testHuffmanLiteralSplitAcrossByteBuffers() throws IOException {
+    // Literal Header Field with Incremental Indexing from Section C.4.3
+    byte[] b = Hex.decodeHex(("4088" + "25a849e95ba97d7f" + "89" + "25a849e95bb8e8b4bf").toCharArray());
+    ByteBuffer in = ByteBuffer.wrap(b, 0, 12);
+    decoder.decode(in, mockListener);
+    assertFalse(in.hasRemaining());
+    for (int i = 12; i < b.length; i++) {
+      verifyNoMoreInteractions(mockListener);
+      decoder.decode(ByteBuffer.wrap(b, i, 1), mockListener);
+    }
+    verify(mockListener).addHeader(getBytes("custom-key"), getBytes("custom-value"), false);
+    verifyNoMoreInteractions(mockListener);
+    assertEquals(new HeaderField("custom-key", "custom-value"), decoder.getHeaderField(0));
+  }
+
+  @Test(expected = IOException.class)
+  public void testHuffmanLiteralSplitAcrossByteBuffersInvalidPadding() throws IOException {
+    // Huffman encoded value of "a" followed by 8 bits of padding
+    byte[] b = Hex.decodeHex(("0004" + hex("name") + "82" + "1fff").toCharArray());
+    decoder.decode(ByteBuffer.wrap(b, 0, b.length - 1), mockListener);
+    decoder.decode(ByteBuffer.wrap(b, b.length - 1, 1), mockListener);
+  }
+
+  @Test
+  public void testLiteralSlices() throws IOException {
+    final byte[] b = Hex.decodeHex(("4004" + hex("name") + "05" + hex("value") + "BE").toCharArray());
+    final List<HeaderField> headers = new ArrayList<HeaderField>();
+    decoder.decode(ByteBuffer.wrap(b), new TestHeaderSliceListener(headers) {
+      @Override
+      public void addHeader(byte[] name, int nameOffset, int nameLength,
+          byte[] value, int valueOffset, int valueLength, boolean sensitive) {
+        if (headers.isEmpty()) {
+          // Raw literals are delivered without copying
+          assertSame(b, name);
+          assertSame(b, value);
+        }
+        super.addHeader(name, nameOffset, nameLength, value, valueOffset, valueLength, sensitive);
+      }
+    });
+    assertEquals(2, headers.size());
+    assertEquals(new HeaderField("name", "value"), headers.get(0));
+    assertEquals(new HeaderField("name", "value"), headers.get(1));
+
+    // Verify the dynamic table does not share the input
+    Arrays.fill(b, (byte) 0);
+    assertEquals(new HeaderField("name", "value"), decoder.getHeaderField(0));
+  }
+
+  @Test
+  public void testLiteralSliceNameRetainedAcrossBuffers() throws IOException {
+    byte[] b = Hex.decodeHex(("0004" + hex("name") + "05" + hex("value")).toCharArray());
+    List<HeaderField> headers = new ArrayList<HeaderField>();
+    HeaderSliceListener listener = new TestHeaderSliceListener(headers);
+    byte[] first = Arrays.copyOfRange(b, 0, 7);
+    decoder.decode(ByteBuffer.wrap(first), listener);
+    Arrays.fill(first, (byte) 0);
+    decoder.decode(ByteBuffer.wrap(b, 7, b.length - 7), listener);
+    assertEquals(1, headers.size());
+    assertEquals(new HeaderField("name", "value"), headers.get(0));
+  }
+
+  @Test
+  public void testHuffmanLiteralSlices() throws IOException {
+    // Literal Header Field with Incremental Indexing from Section C.4.3
+    byte[] b = Hex.decodeHex(("4088" + "25a849e95ba97d7f" + "89" + "25a849e95bb8e8b4bf").toCharArray());
+    List<HeaderField> headers = new ArrayList<HeaderField>();
+    HeaderSliceListener listener = new TestHeaderSliceListener(headers);
+    ByteBuffer in = ByteBuffer.allocateDirect(b.length);
+    in.put(b).flip();
+    decoder.decode(in, listener);
+    decoder.decode(ByteBuffer.wrap(b), listener);
+    assertEquals(2, headers.size());
+    assertEquals(new HeaderField("custom-key", "custom-value"), headers.get(0));
+    assertEquals(new HeaderField("custom-key", "custom-value"), headers.get(1));
+    assertEquals(new HeaderField("custom-key", "custom-value"), decoder.getHeaderField(0));
+    assertEquals(new HeaderField("custom-key", "custom-value"), decoder.getHeaderField(1));
+  }
+
+  @Test
+  public void testLazyHuffmanValues() throws IOException {
+    // Literal Header Fields from Section C.4.3 without and with Incremental Indexing
+    byte[] b = Hex.decodeHex(("0088" + "25a849e95ba97d7f" + "89" + "25a849e95bb8e8b4bf"
+        + "4088" + "25a849e95ba97d7f" + "89" + "25a849e95bb8e8b4bf").toCharArray());
+    final List<LazyHeaderValue> values = new ArrayList<LazyHeaderValue>();
+    LazyHeaderListener listener = new LazyHeaderListener() {
+      @Override
+      public void addHeader(byte[] name, LazyHeaderValue value, boolean sensitive) {
+        assertTrue(Arrays.equals(getBytes("custom-key"), name));
+        values.add(value);
+      }
+    };
+    decoder.decodeLazy(ByteBuffer.wrap(b), listener);
+    assertEquals(2, values.size());
+
+    // The value that is not indexed is left encoded
+    LazyHeaderValue value = values.get(0);
+    assertTrue(value.isHuffmanEncoded());
+    assertTrue(Arrays.equals(Hex.decodeHex("25a849e95bb8e8b4bf".toCharArray()), value.getEncoded()));
+    assertTrue(Arrays.equals(getBytes("custom-value"), value.getValue()));
+    assertSame(value.getValue(), value.getValue());
+
+    // The indexed value is decoded
+    value = values.get(1);
+    assertFalse(value.isHuffmanEncoded());
+    assertTrue(Arrays.equals(getBytes("custom-value"), value.getValue()));
+    assertEquals(1, decoder.length());
+    assertEquals(new HeaderField("custom-key", "custom-value"), decoder.getHeaderField(0));
+  }
+
+  @Test
+  public void testInternCache() throws IOException {
+    HeaderInternCache internCache = new HeaderInternCache(64, 16);
+    // Literal Header Fields without Indexing and Never Indexed
+    byte[] b = Hex.decodeHex(("0004" + hex("name") + "05" + hex("value")
+        + "1004" + hex("name") + "05" + hex("value")).toCharArray());
+    final List<byte[]> arrays = new ArrayList<byte[]>();
+    HeaderListener listener = new HeaderListener() {
+      @Override
+      public void addHeader(byte[] name, byte[] value, boolean sensitive) {
+        arrays.add(name);
+        arrays.add(value);
+      }
+    };
+    new Decoder(MAX_HEADER_SIZE, MAX_HEADER_TABLE_SIZE, internCache).decode(ByteBuffer.wrap(b), listener);
+    new Decoder(MAX_HEADER_SIZE, MAX_HEADER_TABLE_SIZE, internCache).decode(ByteBuffer.wrap(b), listener);
+    assertEquals(8, arrays.size());
+    for (byte[] name : new byte[][] {arrays.get(2), arrays.get(4), arrays.get(6)}) {
+      assertSame(arrays.get(0), name);
+    }
+    assertSame(arrays.get(1), arrays.get(5));
+    assertTrue(Arrays.equals(getBytes("value"), arrays.get(1)));
+
+    // Sensitive values are not interned
+    assertNotSame(arrays.get(1), arrays.get(3));
+    assertNotSame(arrays.get(3), arrays.get(7));
+    assertTrue(Arrays.equals(getBytes("value"), arrays.get(7)));
+  }
+
+  @Test
+  public void testStrings() throws IOException {
+    // Indexed :method GET, Literal Header Field with Incremental Indexing
+    // followed by the Indexed Header Fields
+    byte[] b = Hex.decodeHex(("82" + "4004" + hex("name") + "05" + hex("value") + "82" + "be").toCharArray());
+    final List<String> strings = new ArrayList<String>();
+    HeaderStringListener listener = new HeaderStringListener() {
+      @Override
+      public void addHeader(String name, String value, boolean sensitive) {
+        strings.add(name);
+        strings.add(value);
+      }
+    };
+    decoder.decodeStrings(ByteBuffer.wrap(b), listener);
+    assertEquals(Arrays.asList(":method", "GET", "name", "value", ":method", "GET", "name", "value"), strings);
+    for (int i = 0; i < 4; i++) {
+      assertSame(strings.get(i), strings.get(i + 4));
+    }
+
+    // The same header block decoded with a slab table
+    strings.clear();
+    new Decoder(MAX_HEADER_SIZE, MAX_HEADER_TABLE_SIZE, null, true).decodeStrings(ByteBuffer.wrap(b), listener);
+    assertEquals(Arrays.asList(":method", "GET", "name", "value", ":method", "GET", "name", "value"), strings);
+    for (int i = 0; i < 4; i++) {
+      assertSame(strings.get(i), strings.get(i + 4));
+    }
+  }
+
+  @Test
+  public void testStringsLiteralNameAfterIndexedName() throws IOException {
+    // Literal Header Fields with an indexed name followed by a literal name
+    byte[] b = Hex.decodeHex(("4104" + hex("host") + "4004" + hex("name") + "05" + hex("value")).toCharArray());
+    final List<String> strings = new ArrayList<String>();
+    HeaderStringListener listener = new HeaderStringListener() {
+      @Override
+      public void addHeader(String name, String value, boolean sensitive) {
+        strings.add(name);
+        strings.add(value);
+      }
+    };
+    decoder.decodeStrings(ByteBuffer.wrap(b), listener);
+    assertEquals(Arrays.asList(":authority", "host", "name", "value"), strings);
+  }
+
+  @Test
+  public void testSlabTable() throws IOException {
+    // Small table so entries are evicted, wrapped and compacted
+    Encoder encoder = new Encoder(256);
+    Decoder slabDecoder = new Decoder(MAX_HEADER_SIZE, 256, null, true);
+    decoder = new Decoder(MAX_HEADER_SIZE, 256);
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      byte[] name = getBytes("name" + random.nextInt(8));
+      byte[] value = new byte[random.nextInt(4) == 0 ? random.nextInt(200) : random.nextInt(4)];
+      Arrays.fill(value, (byte) ('a' + random.nextInt(4)));
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      encoder.encodeHeader(baos, name, value, false);
+      byte[] b = baos.toByteArray();
+
+      List<HeaderField> headers = new ArrayList<HeaderField>();
+      decoder.decode(ByteBuffer.wrap(b), new TestHeaderListener(headers));
+      slabDecoder.decode(ByteBuffer.wrap(b), new TestHeaderSliceListener(headers));
+      assertFalse(decoder.endHeaderBlock());
+      assertFalse(slabDecoder.endHeaderBlock());
+      assertEquals(Arrays.asList(new HeaderField(name, value), new HeaderField(name, value)), headers);
+      assertEquals(decoder.length(), slabDecoder.length());
+      assertEquals(decoder.size(), slabDecoder.size());
+      for (int j = 0; j < decoder.length(); j++) {
+        assertEquals(decoder.getHeaderField(j), slabDecoder.getHeaderField(j));
+      }
+    }
+  }
+
+  @Test
+  public void testReset() throws IOException {
+    // Literal Header Field with Incremental Indexing with an incomplete value
+    byte[] b = Hex.decodeHex(("4004" + hex("name") + "05" + hex("value")).toCharArray());
+    decoder.decode(ByteBuffer.wrap(b), mockListener);
+    decoder.decode(ByteBuffer.wrap(b, 0, b.length - 2), mockListener);
+    decoder.setMaxHeaderTableSize(0);
+    assertEquals(0, decoder.getMaxHeaderTableSize());
+
+    decoder.reset(MAX_HEADER_TABLE_SIZE);
+    assertEquals(0, decoder.length());
+    assertEquals(0, decoder.size());
+    assertEquals(MAX_HEADER_TABLE_SIZE, decoder.getMaxHeaderTableSize());
+    reset(mockListener);
+    decoder.decode(ByteBuffer.wrap(b), mockListener);
+    assertFalse(decoder.endHeaderBlock());
+    verify(mockListener).addHeader(getBytes("name"), getBytes("value"), false);
+    verifyNoMoreInteractions(mockListener);
+    assertEquals(1, decoder.length());
+  }
+
   @Test(expected = IOException.class)
   public void testUnusedIndex() throws IOException {
     // Index 0 is not used
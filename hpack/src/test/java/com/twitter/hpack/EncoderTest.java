@@ -0,0 +1,667 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EncoderTest {
+
+  private static final int MAX_HEADER_TABLE_SIZE = 4096;
+
+  private Encoder encoder;
+
+  private static byte[] getBytes(String s) {
+    return s.getBytes(ISO_8859_1);
+  }
+
+  private static byte[] encode(Encoder encoder, String name, String value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    encoder.encodeHeader(baos, getBytes(name), getBytes(value), false);
+    return baos.toByteArray();
+  }
+
+  @Before
+  public void setUp() {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE);
+  }
+
+  @Test
+  public void testEncodeByteBuffer() throws IOException {
+    Encoder expected = new Encoder(MAX_HEADER_TABLE_SIZE);
+    ByteBuffer out = ByteBuffer.allocateDirect(64);
+    for (int i = 0; i < 2; i++) {
+      byte[] bytes = encode(expected, "custom-key", "custom-value");
+      out.clear();
+      int length = encoder.encodeHeader(out, getBytes("custom-key"), getBytes("custom-value"), false);
+      assertEquals(bytes.length, length);
+      assertEquals(bytes.length, out.position());
+      byte[] actual = new byte[length];
+      out.flip();
+      out.get(actual);
+      assertArrayEquals(bytes, actual);
+    }
+  }
+
+  @Test
+  public void testEncodeByteArray() throws IOException {
+    byte[] expected = encode(new Encoder(MAX_HEADER_TABLE_SIZE), "custom-key", "custom-value");
+    byte[] out = new byte[expected.length + 3];
+    int length = encoder.encodeHeader(out, 3, getBytes("custom-key"), getBytes("custom-value"), false);
+    assertEquals(expected.length, length);
+    for (int i = 0; i < length; i++) {
+      assertEquals(expected[i], out[i + 3]);
+    }
+  }
+
+  @Test
+  public void testLargeDynamicTable() throws IOException {
+    // Enough entries to resize the hash table and to evict entries
+    encoder = new Encoder(65536);
+    Decoder decoder = new Decoder(8192, 65536);
+    TestHeaderListener listener = new TestHeaderListener(new ArrayList<HeaderField>());
+    for (int i = 0; i < 4000; i++) {
+      byte[] b = encode(encoder, "name" + (i % 100), "value" + i);
+      decoder.decode(ByteBuffer.wrap(b), listener);
+      assertFalse(decoder.endHeaderBlock());
+    }
+    assertEquals(decoder.length(), encoder.length());
+    assertEquals(decoder.size(), encoder.size());
+    for (int i = 0; i < encoder.length(); i++) {
+      assertEquals(decoder.getHeaderField(i), encoder.getHeaderField(i));
+    }
+
+    // The oldest entry is encoded as an indexed header field
+    int length = encoder.length();
+    HeaderField oldest = encoder.getHeaderField(length - 1);
+    byte[] b = new byte[16];
+    int n = encoder.encodeHeader(b, 0, oldest.name, oldest.value, false);
+    assertEquals(length, encoder.length());
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(0xFF);
+    for (int i = StaticTable.length + length - 0x7F; ; i >>>= 7) {
+      if (i < 0x80) {
+        expected.write(i);
+        break;
+      }
+      expected.write((i & 0x7F) | 0x80);
+    }
+    assertArrayEquals(expected.toByteArray(), Arrays.copyOf(b, n));
+  }
+
+  @Test
+  public void testReset() throws IOException {
+    byte[] expected = encode(new Encoder(MAX_HEADER_TABLE_SIZE), "custom-key", "custom-value");
+    encode(encoder, "custom-key", "custom-value");
+    assertEquals(1, encoder.length());
+    encoder.reset(MAX_HEADER_TABLE_SIZE);
+    assertEquals(0, encoder.length());
+    assertEquals(0, encoder.size());
+    assertArrayEquals(expected, encode(encoder, "custom-key", "custom-value"));
+
+    encoder.reset(0);
+    assertEquals(0, encoder.getMaxHeaderTableSize());
+    encode(encoder, "custom-key", "custom-value");
+    assertEquals(0, encoder.length());
+  }
+
+  @Test
+  public void testHeaderName() throws IOException {
+    Encoder expected = new Encoder(MAX_HEADER_TABLE_SIZE);
+    String[][] headers = {
+        { ":path", "/index.html" }, // static name and value
+        { ":path", "/custom" },     // static name
+        { "custom-key", "custom-value" },
+        { "custom-key", "custom-value" },
+        { "custom-key", "other-value" },
+        { "x", "y" }                // name is not Huffman encoded
+    };
+    for (String[] header : headers) {
+      for (boolean sensitive : new boolean[] { false, true }) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        expected.encodeHeader(baos, getBytes(header[0]), getBytes(header[1]), sensitive);
+        byte[] out = new byte[64];
+        int length = encoder.encodeHeader(out, 0, HeaderName.of(header[0]), getBytes(header[1]), sensitive);
+        assertArrayEquals(baos.toByteArray(), Arrays.copyOf(out, length));
+      }
+    }
+    assertEquals(expected.length(), encoder.length());
+    assertSame(HeaderName.of("custom-key"), HeaderName.of("custom-key"));
+  }
+
+  @Test
+  public void testPreparedHeader() throws IOException {
+    String[][] headers = {
+        { ":method", "GET" },       // static name and value
+        { "content-type", "application/json" },
+        { "custom-key", "custom-value" },
+        { "custom-key", "other-value" },
+        { "x", "y" },
+        { "vary", "accept-encoding" }
+    };
+    PreparedHeader[] prepared = new PreparedHeader[headers.length];
+    for (int i = 0; i < headers.length; i++) {
+      prepared[i] = PreparedHeader.of(headers[i][0], headers[i][1]);
+    }
+    // A small table evicts entries, so names are found in the dynamic table only
+    for (int maxHeaderTableSize : new int[] { 0, 50, 100, MAX_HEADER_TABLE_SIZE }) {
+      Encoder expected = new Encoder(maxHeaderTableSize);
+      encoder = new Encoder(maxHeaderTableSize);
+      for (int i = 0; i < 50; i++) {
+        int h = (i * 7) % headers.length;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        expected.encodeHeader(baos, getBytes(headers[h][0]), getBytes(headers[h][1]), false);
+        byte[] out = new byte[64];
+        int length = encoder.encodeHeader(out, 0, prepared[h]);
+        assertArrayEquals(baos.toByteArray(), Arrays.copyOf(out, length));
+      }
+      assertEquals(expected.length(), encoder.length());
+    }
+  }
+
+  @Test
+  public void testStringLiteralLengths() throws IOException {
+    // Compressible and incompressible values around the one byte length prefix limit
+    encoder = new Encoder(0);
+    Random random = new Random(0);
+    ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+    for (int length = 0; length < 300; length++) {
+      byte[] compressible = new byte[length];
+      byte[] incompressible = new byte[length];
+      byte[] mixed = new byte[length];
+      for (int i = 0; i < length; i++) {
+        compressible[i] = 'a';
+        incompressible[i] = (byte) 0xFF;
+        mixed[i] = (byte) random.nextInt(0x100);
+      }
+      for (byte[] value : new byte[][] { compressible, incompressible, mixed }) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(0x00);
+        expected.write(0x01);
+        expected.write('x');
+        int huffmanLength = Huffman.ENCODER.getEncodedLength(value);
+        if (huffmanLength < value.length) {
+          writeInteger(expected, 0x80, huffmanLength);
+          Huffman.ENCODER.encode(expected, value);
+        } else {
+          writeInteger(expected, 0x00, value.length);
+          expected.write(value);
+        }
+
+        byte[] out = new byte[expected.size()];
+        assertEquals(out.length, encoder.encodeHeader(out, 0, getBytes("x"), value, false));
+        assertArrayEquals(expected.toByteArray(), out);
+
+        direct.clear();
+        assertEquals(out.length, encoder.encodeHeader(direct, getBytes("x"), value, false));
+        direct.flip();
+        direct.get(out);
+        assertArrayEquals(expected.toByteArray(), out);
+      }
+    }
+  }
+
+  private static void writeInteger(ByteArrayOutputStream out, int mask, int i) {
+    if (i < 0x7F) {
+      out.write(mask | i);
+      return;
+    }
+    out.write(mask | 0x7F);
+    for (i -= 0x7F; i >= 0x80; i >>>= 7) {
+      out.write((i & 0x7F) | 0x80);
+    }
+    out.write(i);
+  }
+
+  @Test
+  public void testNeverIndexPolicy() throws IOException {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.neverIndex("date", "x-request-id"));
+    Decoder decoder = new Decoder(8192, MAX_HEADER_TABLE_SIZE);
+    TestHeaderListener listener = new TestHeaderListener(new ArrayList<HeaderField>());
+    String[][] headers = {
+        { "date", "Mon, 21 Oct 2013 20:13:21 GMT" },
+        { "x-request-id", "1234" },
+        { "custom-key", "custom-value" }
+    };
+    for (String[] header : headers) {
+      byte[] b = encode(encoder, header[0], header[1]);
+      decoder.decode(ByteBuffer.wrap(b), listener);
+    }
+    assertFalse(decoder.endHeaderBlock());
+    assertEquals(1, encoder.length());
+    assertEquals(new HeaderField("custom-key", "custom-value"), encoder.getHeaderField(0));
+    assertEquals(encoder.length(), decoder.length());
+  }
+
+  @Test
+  public void testNeverIndexHighCardinalityNames() throws IOException {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.neverIndex(IndexingPolicies.HIGH_CARDINALITY_NAMES));
+    for (String name : IndexingPolicies.HIGH_CARDINALITY_NAMES) {
+      encode(encoder, name, "1234");
+    }
+    encode(encoder, "etags", "1234");
+    assertEquals(1, encoder.length());
+    assertEquals(new HeaderField("etags", "1234"), encoder.getHeaderField(0));
+  }
+
+  @Test
+  public void testAdmitRepeatedPolicy() throws IOException {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(100));
+
+    // The first occurrence is not indexed, the second is
+    encode(encoder, "custom-key", "custom-value");
+    assertEquals(0, encoder.length());
+    encode(encoder, "custom-key", "custom-value");
+    assertEquals(1, encoder.length());
+
+    // The third is an indexed header field
+    byte[] b = encode(encoder, "custom-key", "custom-value");
+    assertArrayEquals(new byte[] { (byte) (0x80 | (StaticTable.length + 1)) }, b);
+
+    // Prepared header fields use the same policy
+    PreparedHeader header = PreparedHeader.of("other-key", "other-value");
+    byte[] out = new byte[64];
+    encoder.encodeHeader(out, 0, header);
+    assertEquals(1, encoder.length());
+    encoder.encodeHeader(out, 0, header);
+    assertEquals(2, encoder.length());
+  }
+
+  @Test
+  public void testAdaptiveHuffman() throws IOException {
+    encoder = new Encoder(0);
+    encoder.setAdaptiveHuffman(true);
+    Decoder decoder = new Decoder(8192, 0);
+    List<HeaderField> headers = new ArrayList<HeaderField>();
+    TestHeaderListener listener = new TestHeaderListener(headers);
+    String token = "\u00ff\u00fe\u00fd\u00fc";
+    String text = "aaaaaaaa";
+
+    // Values that compress keep the Huffman code enabled
+    for (int i = 0; i < 10; i++) {
+      assertFalse(isHuffmanValue(encode(encoder, "x", token)));
+      assertTrue(isHuffmanValue(encode(encoder, "x", text)));
+    }
+
+    // After consecutive values that do not compress, compressible values are not compressed
+    for (int i = 0; i < 4; i++) {
+      assertFalse(isHuffmanValue(encode(encoder, "x", token)));
+    }
+    for (int i = 0; i < 64; i++) {
+      byte[] b = encode(encoder, "x", text);
+      assertFalse(isHuffmanValue(b));
+      decoder.decode(ByteBuffer.wrap(b), listener);
+    }
+    assertFalse(decoder.endHeaderBlock());
+    assertEquals(new HeaderField("x", text), headers.get(headers.size() - 1));
+
+    // Other names are not affected
+    assertTrue(isHuffmanValue(encode(encoder, "y", text)));
+
+    // The Huffman code is tried again
+    assertTrue(isHuffmanValue(encode(encoder, "x", text)));
+  }
+
+  @Test
+  public void testCheckpointAdaptiveHuffman() throws IOException {
+    encoder = new Encoder(0);
+    encoder.setAdaptiveHuffman(true);
+    String token = "\u00ff\u00fe\u00fd\u00fc";
+    encode(encoder, "x", token);
+    encode(encoder, "x", token);
+
+    // A value encoded between the checkpoint and its commit is not forgotten,
+    // so the fourth value that does not compress disables the Huffman code
+    Encoder.Checkpoint checkpoint = encoder.checkpoint(
+        new byte[][] { getBytes("x") }, new byte[][] { getBytes(token) }, null);
+    encode(encoder, "x", token);
+    checkpoint.commit(new byte[checkpoint.size()], 0);
+    assertFalse(isHuffmanValue(encode(encoder, "x", "aaaaaaaa")));
+  }
+
+  @Test
+  public void testAdaptiveHuffmanOverflow() throws IOException {
+    encoder = new Encoder(0);
+    encoder.setAdaptiveHuffman(true);
+    String token = "\u00ff\u00fe\u00fd\u00fc";
+    for (int i = 0; i < 4; i++) {
+      encode(encoder, "x", token);
+    }
+
+    // A name whose state shares the slot of x
+    int slot = EncoderDynamicTable.hash(getBytes("x")) & 63;
+    String other = null;
+    for (int i = 0; other == null; i++) {
+      if ((EncoderDynamicTable.hash(getBytes("name" + i)) & 63) == slot) {
+        other = "name" + i;
+      }
+    }
+    try {
+      // Room for the name but not the value
+      encoder.encodeHeader(new byte[2 + other.length()], 0, getBytes(other), getBytes("aaaaaaaa"), false);
+      fail();
+    } catch (BufferOverflowException e) {
+      // expected
+    }
+
+    // The Huffman code is still skipped for x
+    assertFalse(isHuffmanValue(encode(encoder, "x", "aaaaaaaa")));
+  }
+
+  // Returns true if the value of a literal header field with a literal name
+  // of one byte is Huffman encoded
+  private static boolean isHuffmanValue(byte[] b) {
+    assertEquals(0x00, b[0]);
+    assertEquals(0x01, b[1]);
+    return (b[3] & 0x80) != 0;
+  }
+
+  @Test
+  public void testHeaderBlockCache() throws IOException {
+    Encoder expected = new Encoder(256);
+    encoder = new Encoder(256);
+    encoder.setHeaderBlockCacheSize(4);
+    List<PreparedHeader> response = new ArrayList<PreparedHeader>(Arrays.asList(
+        PreparedHeader.of(":status", "200"),
+        PreparedHeader.of("content-type", "application/json"),
+        PreparedHeader.of("server", "hpack")));
+    List<PreparedHeader> other = Arrays.asList(
+        PreparedHeader.of("content-type", "text/html"),
+        PreparedHeader.of("cache-control", "private"));
+
+    // Interleave blocks with header fields that modify or evict entries of the dynamic table
+    Random random = new Random(0);
+    for (int i = 0; i < 200; i++) {
+      ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+      ByteArrayOutputStream actualOut = new ByteArrayOutputStream();
+      switch (random.nextInt(4)) {
+        case 0:
+          String value = "value" + random.nextInt(8);
+          expected.encodeHeader(expectedOut, getBytes("custom-key"), getBytes(value), false);
+          encoder.encodeHeader(actualOut, getBytes("custom-key"), getBytes(value), false);
+          break;
+        case 1:
+          expected.encodeHeaders(expectedOut, other);
+          encoder.encodeHeaders(actualOut, other);
+          break;
+        default:
+          expected.encodeHeaders(expectedOut, response);
+          encoder.encodeHeaders(actualOut, response);
+          break;
+      }
+      assertArrayEquals(expectedOut.toByteArray(), actualOut.toByteArray());
+    }
+
+    // A modified list is not replayed
+    expected.encodeHeaders(new ByteArrayOutputStream(), response);
+    encoder.encodeHeaders(new ByteArrayOutputStream(), response);
+    response.set(2, PreparedHeader.of("server", "other"));
+    ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream actualOut = new ByteArrayOutputStream();
+    expected.encodeHeaders(expectedOut, response);
+    encoder.encodeHeaders(actualOut, response);
+    assertArrayEquals(expectedOut.toByteArray(), actualOut.toByteArray());
+  }
+
+  @Test
+  public void testEncodeHeaders() throws IOException {
+    // Capacities with room for several, one or no header fields
+    for (int capacity : new int[] { 256, 48, 0 }) {
+      for (boolean adaptive : new boolean[] { false, true }) {
+        testEncodeHeaders(capacity, adaptive);
+      }
+    }
+  }
+
+  private void testEncodeHeaders(int capacity, boolean adaptive) throws IOException {
+    Encoder expected = new Encoder(capacity);
+    Encoder direct = new Encoder(capacity);
+    encoder = new Encoder(capacity);
+    expected.setAdaptiveHuffman(adaptive);
+    direct.setAdaptiveHuffman(adaptive);
+    encoder.setAdaptiveHuffman(adaptive);
+    Random random = new Random(0);
+    for (int block = 0; block < 20; block++) {
+      int count = random.nextInt(10);
+      byte[][] names = new byte[count][];
+      byte[][] values = new byte[count][];
+      boolean[] sensitive = new boolean[count];
+      ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+      for (int i = 0; i < count; i++) {
+        names[i] = getBytes(random.nextBoolean() ? "content-type" : "custom-key" + random.nextInt(4));
+        values[i] = random.nextInt(8) == 0 ? getBytes("application/json") : getBytes("value" + random.nextInt(4));
+        sensitive[i] = random.nextInt(8) == 0;
+        expected.encodeHeader(expectedOut, names[i], values[i], sensitive[i]);
+      }
+      ByteArrayOutputStream actualOut = new ByteArrayOutputStream();
+      encoder.encodeHeaders(actualOut, names, values, sensitive);
+      assertArrayEquals(expectedOut.toByteArray(), actualOut.toByteArray());
+
+      // A buffer with less room than the upper bound is planned before it is written
+      ByteBuffer out = ByteBuffer.allocateDirect(expectedOut.size());
+      if (count > 0) {
+        out.limit(expectedOut.size() - 1);
+        int length = direct.length();
+        try {
+          direct.encodeHeaders(out, names, values, sensitive);
+          fail();
+        } catch (BufferOverflowException e) {
+          // expected
+        }
+        assertEquals(0, out.position());
+        assertEquals(length, direct.length());
+        out.limit(out.capacity());
+      }
+      assertEquals(expectedOut.size(), direct.encodeHeaders(out, names, values, sensitive));
+      assertFalse(out.hasRemaining());
+      out.flip();
+      byte[] b = new byte[out.remaining()];
+      out.get(b);
+      assertArrayEquals(expectedOut.toByteArray(), b);
+    }
+  }
+
+  @Test
+  public void testEncodedSize() throws IOException {
+    Encoder[][] encoders = {
+        { new Encoder(128), new Encoder(128) },
+        { new Encoder(0), new Encoder(0) },
+        { new Encoder(128, true, true, false), new Encoder(128, true, true, false) },
+        { new Encoder(128, IndexingPolicies.neverIndex("custom-key1")),
+          new Encoder(128, IndexingPolicies.neverIndex("custom-key1")) },
+        { new Encoder(128), new Encoder(128) },
+        { new Encoder(128, IndexingPolicies.admitRepeated(1024)),
+          new Encoder(128, IndexingPolicies.admitRepeated(1024)) }
+    };
+    encoders[4][0].setAdaptiveHuffman(true);
+    encoders[4][1].setAdaptiveHuffman(true);
+    Random random = new Random(0);
+    for (Encoder[] pair : encoders) {
+      Encoder expected = pair[0];
+      encoder = pair[1];
+      for (int block = 0; block < 50; block++) {
+        // Small tables evict entries that were added earlier in the same block
+        int count = random.nextInt(10);
+        byte[][] names = new byte[count][];
+        byte[][] values = new byte[count][];
+        boolean[] sensitive = new boolean[count];
+        for (int i = 0; i < count; i++) {
+          names[i] = getBytes(random.nextBoolean() ? "content-type" : "custom-key" + random.nextInt(4));
+          values[i] = random.nextBoolean()
+              ? getBytes("value" + random.nextInt(4))
+              : new byte[] { (byte) 0xFF, (byte) random.nextInt(4) };
+          sensitive[i] = random.nextInt(8) == 0;
+        }
+        ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+        expected.encodeHeaders(expectedOut, names, values, sensitive);
+
+        // The size of a single header field is planned without a checkpoint
+        for (int i = 0; i < count; i++) {
+          Encoder.Checkpoint single = encoder.checkpoint(
+              new byte[][] { names[i] }, new byte[][] { values[i] }, new boolean[] { sensitive[i] });
+          assertEquals(single.size(), encoder.encodedSize(names[i], values[i], sensitive[i]));
+        }
+
+        int length = encoder.length();
+        Encoder.Checkpoint checkpoint = encoder.checkpoint(names, values, sensitive);
+        assertEquals(length, encoder.length());
+        assertEquals(expectedOut.size(), checkpoint.size());
+        byte[] out = new byte[checkpoint.size()];
+        assertEquals(out.length, checkpoint.commit(out, 0));
+        assertArrayEquals(expectedOut.toByteArray(), out);
+        assertEquals(expected.length(), encoder.length());
+      }
+    }
+  }
+
+  @Test
+  public void testEncodedSizeSingleHeader() throws IOException {
+    byte[] name = getBytes("custom-key");
+    byte[] value = getBytes("custom-value");
+    int size = encoder.encodedSize(name, value, false);
+    assertEquals(0, encoder.length());
+    assertEquals(size, encode(encoder, "custom-key", "custom-value").length);
+    assertEquals(1, encoder.encodedSize(name, value, false));
+  }
+
+  @Test
+  public void testEncodedSizeAdmitRepeated() throws IOException {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(100));
+    byte[][] names = { getBytes("accept") };
+    byte[][] values = { getBytes("text/foo") };
+
+    // Predicting the size does not record the header field in the policy
+    for (int i = 0; i < 3; i++) {
+      int size = encoder.encodedSize(names, values, null);
+      assertEquals(size, encoder.encodedSize(names[0], values[0], false));
+      assertEquals(size, encode(encoder, "accept", "text/foo").length);
+    }
+    assertEquals(1, encoder.length());
+
+    // A header field that repeats within the block
+    names = new byte[][] { getBytes("custom-key"), getBytes("custom-key"), getBytes("custom-key") };
+    values = new byte[][] { getBytes("custom-value"), getBytes("custom-value"), getBytes("custom-value") };
+    int size = encoder.encodedSize(names, values, null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < names.length; i++) {
+      encoder.encodeHeader(out, names[i], values[i], false);
+    }
+    assertEquals(size, out.size());
+    assertEquals(2, encoder.length());
+
+    // Committing a checkpoint records the header fields in the policy
+    names = new byte[][] { getBytes("other-key") };
+    values = new byte[][] { getBytes("other-value") };
+    Encoder.Checkpoint checkpoint = encoder.checkpoint(names, values, null);
+    checkpoint.commit(new byte[checkpoint.size()], 0);
+    assertEquals(2, encoder.length());
+    size = encoder.encodedSize(names, values, null);
+    assertEquals(size, encode(encoder, "other-key", "other-value").length);
+    assertEquals(3, encoder.length());
+
+    // A block long enough for the sketch to age while it is planned
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(16));
+    names = new byte[400][];
+    values = new byte[400][];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = getBytes("custom-key");
+      values[i] = getBytes("value" + (i % 100));
+    }
+    for (int j = 0; j < 3; j++) {
+      size = encoder.encodedSize(names, values, null);
+      out = new ByteArrayOutputStream();
+      for (int i = 0; i < names.length; i++) {
+        encoder.encodeHeader(out, names[i], values[i], false);
+      }
+      assertEquals(size, out.size());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testStaleCheckpoint() throws IOException {
+    byte[][] names = { getBytes("custom-key") };
+    byte[][] values = { getBytes("custom-value") };
+    Encoder.Checkpoint checkpoint = encoder.checkpoint(names, values, null);
+    encode(encoder, "other-key", "other-value");
+    checkpoint.commit(new byte[checkpoint.size()], 0);
+  }
+
+  @Test
+  public void testEncodeByteBufferOverflow() throws IOException {
+    ByteBuffer out = ByteBuffer.allocate(4);
+    out.put((byte) 0);
+    try {
+      encoder.encodeHeader(out, getBytes("custom-key"), getBytes("custom-value"), false);
+      fail();
+    } catch (BufferOverflowException e) {
+      // expected
+    }
+
+    // Verify the buffer and the dynamic table are unmodified
+    assertEquals(1, out.position());
+    assertEquals(0, encoder.length());
+    assertEquals(0, encoder.size());
+  }
+
+  @Test
+  public void testEncodeOverflowAdmitRepeated() throws IOException {
+    encoder = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(100));
+    byte[] expected = encode(new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(100)),
+        "custom-key", "custom-value");
+    try {
+      encoder.encodeHeader(new byte[3], 0, getBytes("custom-key"), getBytes("custom-value"), false);
+      fail();
+    } catch (BufferOverflowException e) {
+      // expected
+    }
+    // The failed write was not recorded in the policy
+    assertArrayEquals(expected, encode(encoder, "custom-key", "custom-value"));
+    assertEquals(0, encoder.length());
+
+    // The same holds for prepared header fields
+    PreparedHeader header = PreparedHeader.of("other-key", "other-value");
+    byte[] out = new byte[64];
+    int length = new Encoder(MAX_HEADER_TABLE_SIZE, IndexingPolicies.admitRepeated(100))
+        .encodeHeader(out, 0, header);
+    expected = Arrays.copyOf(out, length);
+    try {
+      encoder.encodeHeader(new byte[3], 0, header);
+      fail();
+    } catch (BufferOverflowException e) {
+      // expected
+    }
+    length = encoder.encodeHeader(out, 0, header);
+    assertArrayEquals(expected, Arrays.copyOf(out, length));
+    assertEquals(0, encoder.length());
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HpackCodecPoolTest {
+
+  @Test
+  public void testRecycle() throws IOException {
+    HpackCodecPool pool = new HpackCodecPool(1, 8192, 4096);
+    HpackCodecPool.Codec codec = pool.acquire();
+    HpackCodecPool.Codec other = pool.acquire();
+    assertNotSame(codec, other);
+
+    byte[] name = "custom-key".getBytes(ISO_8859_1);
+    byte[] value = "custom-value".getBytes(ISO_8859_1);
+    codec.getEncoder().encodeHeader(new ByteArrayOutputStream(), name, value, false);
+    assertEquals(1, codec.getEncoder().length());
+    codec.getEncoder().reset(0);
+
+    // The pool retains at most one pair
+    pool.release(codec);
+    pool.release(other);
+    assertSame(codec, pool.acquire());
+    assertNotSame(other, pool.acquire());
+
+    // Released pairs are reset
+    assertEquals(0, codec.getEncoder().length());
+    assertEquals(4096, codec.getEncoder().getMaxHeaderTableSize());
+    assertEquals(4096, codec.getDecoder().getMaxHeaderTableSize());
+  }
+}
@@ -18,14 +18,29 @@ package com.twitter.hpack;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODES;
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODE_LENGTHS;
+
 public class HuffmanTest {
 
+  private static final HuffmanDecoder[] DECODERS = {
+      Huffman.DECODER,
+      new HuffmanDecoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, false)
+  };
+
+  private static final HuffmanEncoder[] BUFFER_ENCODERS = {
+      Huffman.ENCODER,
+      new HuffmanEncoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, false)
+  };
+
   @Test
   public void testHuffman() throws IOException {
 
@@ -38,6 +53,15 @@ public class HuffmanTest {
     byte[] buf = new byte[4096];
     random.nextBytes(buf);
     roundTrip(buf);
+
+    // every symbol, including those with codes longer than the lookup window
+    buf = new byte[256];
+    for (int i = 0; i < buf.length; i++) {
+      buf[i] = (byte) i;
+    }
+    for (int i = 0; i < buf.length; i++) {
+      roundTrip(Arrays.copyOfRange(buf, i, buf.length));
+    }
   }
 
   @Test(expected = IOException.class)
@@ -56,7 +80,30 @@ public class HuffmanTest {
     Huffman.DECODER.decode(buf);
   }
 
-  @Test//(expected = IOException.class) TODO(jpinner) fix me
+  @Test
+  public void testDecodeInvalidInput() {
+    String[] inputs = {
+        "FFFFFFFF",   // EOS
+        "FFFFFFFC",   // 30 bit EOS followed by 2 bits padding
+        "00",         // '0' followed by invalid padding
+        "0FFF",       // '1' followed by 11 bits padding
+        "FFFA",       // partial 13 bit code
+        "FE",         // partial 10 bit code
+        "FFFFFFFFFF"  // EOS
+    };
+    for (HuffmanDecoder decoder : DECODERS) {
+      for (String input : inputs) {
+        try {
+          decoder.decode(Hex.decodeHex(input.toCharArray()));
+          Assert.fail(input);
+        } catch (IOException e) {
+          // expected
+        }
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
   public void testDecodeExtraPadding() throws IOException {
     byte[] buf = new byte[2];
     buf[0] = 0x0F; // '1', 'EOS'
@@ -65,7 +112,9 @@ public class HuffmanTest {
   }
 
   private void roundTrip(String s) throws IOException {
-    roundTrip(Huffman.ENCODER, Huffman.DECODER, s);
+    for (HuffmanDecoder decoder : DECODERS) {
+      roundTrip(Huffman.ENCODER, decoder, s);
+    }
   }
 
   private static void roundTrip(HuffmanEncoder encoder, HuffmanDecoder decoder, String s) throws IOException {
@@ -73,7 +122,9 @@ public class HuffmanTest {
   }
 
   private void roundTrip(byte[] buf) throws IOException {
-    roundTrip(Huffman.ENCODER, Huffman.DECODER, buf);
+    for (HuffmanDecoder decoder : DECODERS) {
+      roundTrip(Huffman.ENCODER, decoder, buf);
+    }
   }
 
   private static void roundTrip(HuffmanEncoder encoder, HuffmanDecoder decoder, byte[] buf) throws IOException {
@@ -85,5 +136,44 @@ public class HuffmanTest {
     byte[] actualBytes = decoder.decode(baos.toByteArray());
 
     Assert.assertTrue(Arrays.equals(buf, actualBytes));
+
+    // encode into heap and direct buffers of either byte order at an offset
+    byte[] encoded = baos.toByteArray();
+    ByteBuffer[] buffers = {
+        ByteBuffer.allocate(encoded.length + 1),
+        ByteBuffer.allocateDirect(encoded.length + 1).order(ByteOrder.LITTLE_ENDIAN)
+    };
+    for (HuffmanEncoder bufferEncoder : BUFFER_ENCODERS) {
+      for (ByteBuffer buffer : buffers) {
+        buffer.clear();
+        buffer.put((byte) 0);
+        bufferEncoder.encode(buffer, buf, 0, buf.length);
+        Assert.assertFalse(buffer.hasRemaining());
+        byte[] actual = new byte[encoded.length];
+        buffer.position(1);
+        buffer.get(actual);
+        Assert.assertTrue(Arrays.equals(encoded, actual));
+      }
+    }
+
+    // decode into a caller provided array at an offset
+    byte[] src = new byte[encoded.length + 2];
+    System.arraycopy(encoded, 0, src, 1, encoded.length);
+    byte[] dst = new byte[HuffmanDecoder.getMaxDecodedLength(encoded.length) + 3];
+    int n = decoder.decode(src, 1, encoded.length, dst, 3);
+    Assert.assertEquals(buf.length, n);
+    Assert.assertTrue(Arrays.equals(buf, Arrays.copyOfRange(dst, 3, 3 + n)));
+
+    // decode between direct buffers
+    ByteBuffer in = ByteBuffer.allocateDirect(encoded.length);
+    in.put(encoded).flip();
+    ByteBuffer out = ByteBuffer.allocateDirect(HuffmanDecoder.getMaxDecodedLength(encoded.length));
+    n = decoder.decode(in, out);
+    Assert.assertEquals(buf.length, n);
+    Assert.assertFalse(in.hasRemaining());
+    out.flip();
+    actualBytes = new byte[out.remaining()];
+    out.get(actualBytes);
+    Assert.assertTrue(Arrays.equals(buf, actualBytes));
   }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import org.junit.Test;
+
+import static com.twitter.hpack.HpackUtil.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StaticTableTest {
+
+  private static byte[] getBytes(String s) {
+    return s.getBytes(ISO_8859_1);
+  }
+
+  @Test
+  public void testGetIndex() {
+    for (int index = 1; index <= StaticTable.length; index++) {
+      HeaderField entry = StaticTable.getEntry(index);
+      assertEquals(index, StaticTable.getIndex(entry.name, entry.value));
+      int nameIndex = StaticTable.getIndex(entry.name);
+      assertEquals(entry.nameString(), StaticTable.getEntry(nameIndex).nameString());
+      assertTrue(nameIndex <= index);
+    }
+    assertEquals(2, StaticTable.getIndex(getBytes(":method")));
+    assertEquals(3, StaticTable.getIndex(getBytes(":method"), getBytes("POST")));
+  }
+
+  @Test
+  public void testGetIndexSlice() {
+    byte[] b = getBytes("x:path/index.htmlx");
+    assertEquals(4, StaticTable.getIndex(b, 1, 5));
+    assertEquals(5, StaticTable.getIndex(b, 1, 5, b, 6, 11));
+    assertEquals(-1, StaticTable.getIndex(b, 1, 5, b, 6, 12));
+  }
+
+  @Test
+  public void testGetIndexMissing() {
+    assertEquals(-1, StaticTable.getIndex(getBytes("")));
+    assertEquals(-1, StaticTable.getIndex(getBytes(":methoe")));
+    assertEquals(-1, StaticTable.getIndex(getBytes("x-custom")));
+    assertEquals(-1, StaticTable.getIndex(getBytes(":method"), getBytes("PUT")));
+  }
+}
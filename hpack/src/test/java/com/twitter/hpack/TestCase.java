@@ -97,7 +97,12 @@ final class TestCase {
   }
 
   void testDecompress() throws Exception {
-    Decoder decoder = createDecoder();
+    testDecompress(false);
+    testDecompress(true);
+  }
+
+  private void testDecompress(boolean slabTable) throws Exception {
+    Decoder decoder = createDecoder(slabTable);
 
     for (HeaderBlock headerBlock : headerBlocks) {
 
@@ -144,13 +149,13 @@ final class TestCase {
     return new Encoder(maxHeaderTableSize, useIndexing, forceHuffmanOn, forceHuffmanOff);
   }
 
-  private Decoder createDecoder() {
+  private Decoder createDecoder(boolean slabTable) {
     int maxHeaderTableSize = this.maxHeaderTableSize;
     if (maxHeaderTableSize == -1) {
       maxHeaderTableSize = Integer.MAX_VALUE;
     }
 
-    return new Decoder(8192, maxHeaderTableSize);
+    return new Decoder(8192, maxHeaderTableSize, null, slabTable);
   }
 
   private static byte[] encode(Encoder encoder, List<HeaderField> headers, int maxHeaderTableSize, boolean sensitive)
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.util.Arrays;
+import java.util.List;
+
+class TestHeaderSliceListener implements HeaderSliceListener {
+
+  private final List<HeaderField> headers;
+
+  TestHeaderSliceListener(List<HeaderField> headers) {
+    this.headers = headers;
+  }
+
+  @Override
+  public void addHeader(byte[] name, int nameOffset, int nameLength,
+      byte[] value, int valueOffset, int valueLength, boolean sensitive) {
+    headers.add(new HeaderField(
+        Arrays.copyOfRange(name, nameOffset, nameOffset + nameLength),
+        Arrays.copyOfRange(value, valueOffset, valueOffset + valueLength)));
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.io.IOException;
+
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODE_LENGTHS;
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODES;
+
+/**
+ * Gives the benchmarks access to the decoding strategies of the Huffman decoder.
+ */
+public final class HuffmanDecoders {
+
+    private static final HuffmanDecoder MULTI_SYMBOL = new HuffmanDecoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, true);
+    private static final HuffmanDecoder SINGLE_NIBBLE = new HuffmanDecoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, false);
+
+    private HuffmanDecoders() {
+        // utility class
+    }
+
+    /**
+     * Decodes the Huffman encoded data with a table lookup that yields up to two
+     * symbols at a time, or with the state machine that consumes a nibble at a time.
+     */
+    public static byte[] decode(byte[] buf, boolean multiSymbol) throws IOException {
+        return (multiSymbol ? MULTI_SYMBOL : SINGLE_NIBBLE).decode(buf);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODE_LENGTHS;
+import static com.twitter.hpack.HpackUtil.HUFFMAN_CODES;
+
+/**
+ * Gives the benchmarks access to the encoding strategies of the Huffman encoder.
+ */
+public final class HuffmanEncoders {
+
+    private static final HuffmanEncoder PAIRS = new HuffmanEncoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, true);
+    private static final HuffmanEncoder SINGLE = new HuffmanEncoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS, false);
+
+    private HuffmanEncoders() {
+        // utility class
+    }
+
+    /**
+     * Huffman encodes the data into the output stream with the default encoder.
+     */
+    public static void encode(OutputStream out, byte[] data) throws IOException {
+        Huffman.ENCODER.encode(out, data);
+    }
+
+    /**
+     * Huffman encodes the data into the buffer with the default encoder.
+     */
+    public static void encode(ByteBuffer out, byte[] data) {
+        Huffman.ENCODER.encode(out, data, 0, data.length);
+    }
+
+    /**
+     * Huffman encodes the data into the buffer a pair of symbols at a time
+     * with a single lookup, or one symbol at a time.
+     */
+    public static void encode(ByteBuffer out, byte[] data, boolean pairs) {
+        (pairs ? PAIRS : SINGLE).encode(out, data, 0, data.length);
+    }
+}
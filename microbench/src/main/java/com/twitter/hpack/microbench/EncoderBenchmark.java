@@ -47,11 +47,24 @@ public class EncoderBenchmark extends AbstractMicrobenchmarkBase {
 
     private List<Header> headers;
     private ByteArrayOutputStream outputStream;
+    private byte[][] names;
+    private byte[][] values;
+    private boolean[] sensitiveFlags;
 
     @Setup(Level.Trial)
     public void setup() {
         headers = headers(size, limitToAscii);
         outputStream = size.newOutputStream();
+        names = new byte[headers.size()][];
+        values = new byte[headers.size()][];
+        sensitiveFlags = new boolean[headers.size()];
+        for (int i = 0; i < headers.size(); ++i) {
+            // If duplicates is set, use the same header each time.
+            Header header = headers.get(duplicates ? 0 : i);
+            names[i] = header.name;
+            values[i] = header.value;
+            sensitiveFlags[i] = sensitive;
+        }
     }
 
     @Benchmark
@@ -73,4 +86,13 @@ public class EncoderBenchmark extends AbstractMicrobenchmarkBase {
         }
         bh.consume(outputStream);
     }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void encodeHeaders(Blackhole bh) throws IOException {
+        Encoder encoder = new Encoder(maxTableSize);
+        outputStream.reset();
+        encoder.encodeHeaders(outputStream, names, values, sensitiveFlags);
+        bh.consume(outputStream);
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack.microbench;
+
+import com.twitter.hpack.Encoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Measures dynamic table lookups, insertions and evictions with large tables.
+ */
+public class EncoderTableBenchmark extends AbstractMicrobenchmarkBase {
+
+    // Header fields of 64 bytes including the entry overhead
+    private static final int NAME_LENGTH = 12;
+    private static final int VALUE_LENGTH = 20;
+    private static final int HEADER_SIZE = NAME_LENGTH + VALUE_LENGTH + 32;
+
+    @Param({"4096", "65536", "1048576"})
+    public int maxTableSize;
+
+    // If true, every header field is in the dynamic table,
+    // otherwise every header field is added and evicts the oldest entry.
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    private List<Header> headers;
+    private Encoder encoder;
+    private ByteBuffer out;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int entries = maxTableSize / HEADER_SIZE;
+        int numHeaders = indexed ? entries : 2 * entries;
+        headers = Header.createHeaders(numHeaders, NAME_LENGTH, VALUE_LENGTH, true);
+        encoder = new Encoder(maxTableSize);
+        out = ByteBuffer.allocate(2 * HEADER_SIZE);
+        for (int i = 0; i < numHeaders; i++) {
+            encode();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int encode() {
+        Header header = headers.get(next);
+        if (++next == headers.size()) {
+            next = 0;
+        }
+        out.clear();
+        return encoder.encodeHeader(out, header.name, header.value, false);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack.microbench;
+
+import com.twitter.hpack.HuffmanDecoders;
+import com.twitter.hpack.HuffmanEncoders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class HuffmanDecoderBenchmark extends AbstractMicrobenchmarkBase {
+
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    @Param({"true", "false"})
+    public boolean limitToAscii;
+
+    @Param({"true", "false"})
+    public boolean multiSymbol;
+
+    private byte[] input;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] value = Header.createHeaders(1, 1, length, limitToAscii).get(0).value;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        HuffmanEncoders.encode(outputStream, value);
+        input = outputStream.toByteArray();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public byte[] decode() throws IOException {
+        return HuffmanDecoders.decode(input, multiSymbol);
+    }
+}
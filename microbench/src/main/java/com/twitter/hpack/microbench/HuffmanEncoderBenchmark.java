@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack.microbench;
+
+import com.twitter.hpack.HuffmanEncoders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares Huffman encoding into a buffer, a word at a time,
+ * with encoding into an output stream, a byte at a time.
+ */
+public class HuffmanEncoderBenchmark extends AbstractMicrobenchmarkBase {
+
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    @Param({"true", "false"})
+    public boolean limitToAscii;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private byte[] input;
+    private ByteBuffer buffer;
+    private ByteArrayOutputStream outputStream;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        input = Header.createHeaders(1, 1, length, limitToAscii).get(0).value;
+        int maxLength = 4 * length;
+        buffer = direct ? ByteBuffer.allocateDirect(maxLength) : ByteBuffer.allocate(maxLength);
+        outputStream = new ByteArrayOutputStream(maxLength);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public ByteBuffer encodeByteBuffer() {
+        buffer.clear();
+        HuffmanEncoders.encode(buffer, input);
+        return buffer;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public ByteArrayOutputStream encodeOutputStream() throws IOException {
+        outputStream.reset();
+        HuffmanEncoders.encode(outputStream, input);
+        return outputStream;
+    }
+}
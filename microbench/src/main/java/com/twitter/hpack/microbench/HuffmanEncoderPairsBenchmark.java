@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Twitter, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twitter.hpack.microbench;
+
+import com.twitter.hpack.HuffmanEncoders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Compares Huffman encoding of the names and values of a header block
+ * a pair of symbols at a time with encoding one symbol at a time.
+ */
+public class HuffmanEncoderPairsBenchmark extends AbstractMicrobenchmarkBase {
+
+    @Param
+    public HeadersSize size;
+
+    @Param({"true", "false"})
+    public boolean limitToAscii;
+
+    @Param({"true", "false"})
+    public boolean pairs;
+
+    private List<Header> headers;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        headers = size.newHeaders(limitToAscii);
+        int maxLength = 0;
+        for (Header header : headers) {
+            maxLength = Math.max(maxLength, Math.max(header.name.length, header.value.length));
+        }
+        // Huffman codes are at most 30 bits long
+        buffer = ByteBuffer.allocate(4 * maxLength);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int encode() {
+        int length = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            Header header = headers.get(i);
+            buffer.clear();
+            HuffmanEncoders.encode(buffer, header.name, pairs);
+            length += buffer.position();
+            buffer.clear();
+            HuffmanEncoders.encode(buffer, header.value, pairs);
+            length += buffer.position();
+        }
+        return length;
+    }
+}